@@ -1,4 +1,8 @@
 import java.io.BufferedReader;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 class ClientState {
     private static final long TIMEOUT = 5000L;
@@ -11,7 +15,12 @@ class ClientState {
     private long commandStart = 0;
     String userName = null;
     String password = null;
-    String file = null;
+    WireFormat format = new TextWireFormat();
+    StripedTransfer striped = null; //carries single files over several connections, if it is enabled
+    boolean windowed = true; //whether files are sent within the windows the server grants
+    //the requests that have been sent and not answered yet, by request id
+    private final Map<Long, Request> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
 
     boolean isLoggedIn() {
         return loggedIn;
@@ -55,5 +64,96 @@ class ClientState {
         working = false;
     }
 
+    /**
+     * Records a request that is about to be sent, the client does not have to wait for its reply to send the next one
+     *
+     * @param type  the type of the command
+     * @param files the files of the request in the order they will be answered, if it has any
+     * @return the id to send the command with
+     */
+    long startRequest(String type, String... files) {
+        commandStarted();
+        long requestId = nextRequestId.incrementAndGet();
+        pending.put(requestId, new Request(type, files));
+        return requestId;
+    }
+
+    /**
+     * Records an upload that is about to be started, the replies to it are handed to the upload
+     *
+     * @param upload the upload
+     * @return the id to send the commands of the upload with
+     */
+    long startUpload(WindowedUpload upload) {
+        long requestId = startRequest(Command.UPLOAD, upload.file);
+        pending.get(requestId).upload = upload;
+        return requestId;
+    }
+
+    /**
+     * Finds the request a reply belongs to and forgets it once it has been fully answered.
+     * Servers that do not know request ids answer in order, so a reply without one belongs to the oldest request of its type
+     *
+     * @param reply the reply of the server
+     * @return the request or null if no request is waiting for the reply
+     */
+    Request finishRequest(Command reply) {
+        long requestId = reply.getRequestId();
+        if (requestId != Command.NO_REQUEST) {
+            Request request = pending.get(requestId);
+            if (request != null && request.isAnsweredBy(reply))
+                pending.remove(requestId);
+            return request;
+        }
+        Iterator<Map.Entry<Long, Request>> oldest = pending.entrySet().stream()
+                .filter(e -> e.getValue().type.equals(reply.getType()))
+                .sorted(Map.Entry.comparingByKey())
+                .iterator();
+        return oldest.hasNext() ? pending.remove(oldest.next().getKey()) : null;
+    }
+
+    /**
+     * Forgets every request that has not been answered
+     */
+    void clearRequests() {
+        pending.clear();
+    }
+
+    /**
+     * A request that waits for its reply
+     */
+    static class Request {
+        final String type;
+        private final String[] files;
+        private int next;
+        volatile WindowedUpload upload; //the upload that takes the replies, for uploads
+
+        Request(String type, String... files) {
+            this.type = type;
+            this.files = files;
+        }
+
+        /**
+         * @return the file the next reply is about, null if there is none
+         */
+        String nextFile() {
+            return next < files.length ? files[next++] : null;
+        }
+
+        /**
+         * A batch gets a reply for every command it carries before its own reply,
+         * an upload gets its window and acknowledgements until it is saved or fails
+         */
+        boolean isAnsweredBy(Command reply) {
+            if (reply.getType().equals(Command.BUSY))
+                return true;
+            if (type.equals(Command.BATCH))
+                return reply.getType().equals(Command.BATCH);
+            if (type.equals(Command.UPLOAD))
+                return reply.getParameter(Command.ERROR) != null || reply.getParameter(Command.SUCCESS) != null;
+            return true;
+        }
+    }
+
 
 }
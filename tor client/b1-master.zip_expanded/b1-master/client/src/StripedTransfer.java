@@ -0,0 +1,190 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Carries a single file over several connections at once, every connection carries one stripe of the file.
+ * Over Tor every connection is a circuit of its own, so a file is not limited to what a single circuit can carry.
+ * The connections are opened when they are first needed and kept for the next transfers
+ */
+class StripedTransfer {
+    private final Callable<Socket> connector;
+    private final boolean binary;
+    private final Stripe[] stripes;
+    private final ExecutorService executor;
+    private final Random random = new Random();
+
+    /**
+     * @param count     the number of connections
+     * @param binary    whether the connections use the binary format
+     * @param connector opens a connection to the server
+     */
+    StripedTransfer(int count, boolean binary, Callable<Socket> connector) {
+        this.connector = connector;
+        this.binary = binary;
+        this.stripes = new Stripe[count];
+        for (int idx = 0; idx < count; idx++) {
+            stripes[idx] = new Stripe();
+        }
+        this.executor = Executors.newFixedThreadPool(count, task -> {
+            Thread t = new Thread(task, "stripe");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Sends a file, every connection sends its range of the data
+     *
+     * @throws IOException what went wrong with the first stripe that failed
+     */
+    synchronized void send(String userName, String password, String file, byte[] data) throws IOException {
+        long transferId = random.nextLong() & Long.MAX_VALUE;
+        run(idx -> {
+            int from = (int) ((long) data.length * idx / stripes.length);
+            int to = (int) ((long) data.length * (idx + 1) / stripes.length);
+            Command cmd = new Command(Command.SEND)
+                    .addParameter(Command.USERNAME, userName)
+                    .addParameter(Command.PASSWORD, password)
+                    .addParameter(Command.FILE, file)
+                    .addParameter(Command.LENGTH, to - from)
+                    .addParameter(Command.TRANSFER, transferId)
+                    .addParameter(Command.STRIPE, idx)
+                    .addParameter(Command.COUNT, stripes.length)
+                    .addParameter(Command.OFFSET, from)
+                    .addParameter(Command.TOTAL, data.length);
+            Stripe stripe = stripes[idx];
+            stripe.format.write(cmd, to - from, stripe.out);
+            stripe.out.write(data, from, to - from);
+            stripe.out.flush();
+            stripe.readReply();
+        });
+    }
+
+    /**
+     * Retrieves a file, every connection retrieves its range of the data
+     *
+     * @return the data of the file
+     * @throws IOException what went wrong with the first stripe that failed
+     */
+    synchronized byte[] receive(String userName, String password, String file) throws IOException {
+        long transferId = random.nextLong() & Long.MAX_VALUE;
+        byte[][] data = new byte[1][];
+        run(idx -> {
+            Command cmd = new Command(Command.RECEIVE)
+                    .addParameter(Command.USERNAME, userName)
+                    .addParameter(Command.PASSWORD, password)
+                    .addParameter(Command.FILE, file)
+                    .addParameter(Command.TRANSFER, transferId)
+                    .addParameter(Command.STRIPE, idx)
+                    .addParameter(Command.COUNT, stripes.length);
+            Stripe stripe = stripes[idx];
+            stripe.format.write(cmd, 0, stripe.out);
+            stripe.out.flush();
+            Command reply = stripe.readReply();
+            int length = (int) reply.getLongParameter(Command.SUCCESS);
+            int offset = (int) reply.getLongParameter(Command.OFFSET);
+            int total = (int) reply.getLongParameter(Command.TOTAL);
+            byte[] whole;
+            synchronized (data) { //the first stripe that is answered knows how long the file is
+                if (data[0] == null)
+                    data[0] = new byte[total];
+                whole = data[0];
+            }
+            if (whole.length != total || offset < 0 || offset + length > total)
+                throw new IOException("Invalid stripe received");
+            stripe.in.readFully(whole, offset, length);
+        });
+        return data[0];
+    }
+
+    /**
+     * Runs a stripe on every connection at once and waits for all of them
+     */
+    private void run(StripeTask task) throws IOException {
+        CompletableFuture<?>[] running = new CompletableFuture<?>[stripes.length];
+        for (int idx = 0; idx < stripes.length; idx++) {
+            int stripe = idx;
+            running[idx] = CompletableFuture.runAsync(() -> {
+                try {
+                    stripes[stripe].open();
+                    task.run(stripe);
+                } catch (Exception e) {
+                    stripes[stripe].close(); //the connection may be in the middle of a command
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        }
+        try {
+            CompletableFuture.allOf(running).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Closes all the connections
+     */
+    void close() {
+        for (Stripe stripe : stripes) {
+            stripe.close();
+        }
+        executor.shutdown();
+    }
+
+    private interface StripeTask {
+        void run(int stripe) throws Exception;
+    }
+
+    /**
+     * One of the connections
+     */
+    private class Stripe {
+        private Socket socket;
+        private DataInputStream in;
+        private PrintStream out;
+        private WireFormat format;
+
+        void open() throws Exception {
+            if (socket != null && !socket.isClosed())
+                return;
+            socket = connector.call();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new PrintStream(socket.getOutputStream());
+            format = WireFormat.connect(in, out, binary);
+        }
+
+        /**
+         * Reads the reply of the stripe
+         *
+         * @return the reply, reused by the next read
+         * @throws IOException if the server answered with an error
+         */
+        Command readReply() throws IOException {
+            Command reply = format.read(in);
+            if (reply == null)
+                throw new EOFException("Connection closed");
+            if (reply.getParameter(Command.ERROR) != null)
+                throw new IOException(reply.getParameter(Command.ERROR));
+            return reply;
+        }
+
+        void close() {
+            try {
+                if (socket != null)
+                    socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffers for moving data that are handed back and reused, so moving a large file does not leave a trail of garbage behind.
+ * There are heap buffers, for data the code works on (like encrypting it), and direct buffers outside of the heap,
+ * for data that only goes between channels: the JDK has to copy heap buffers into direct ones for every read and write anyway.
+ * The buffers come in a few sizes, a buffer is borrowed through a {@link Lease} that is closed to give it back.
+ * Only a limited number of buffers of every size is kept, and a lease that is forgotten without being closed is counted
+ * in {@link #getLeaked}, which the server reports with its other metrics
+ */
+class BufferPool {
+    //the size most copies use, large enough to move data in few calls
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int[] SIZES = {8 * 1024, BUFFER_SIZE, 256 * 1024};
+    private static final int MAX_POOLED = 32; //of every size and kind
+
+    private static final SizeClass[] heap = new SizeClass[SIZES.length];
+    private static final SizeClass[] direct = new SizeClass[SIZES.length];
+    private static final Cleaner cleaner = Cleaner.create();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder outstanding = new LongAdder(); //bytes lent out and not given back yet
+    private static final LongAdder leaked = new LongAdder();
+
+    static {
+        for (int idx = 0; idx < SIZES.length; idx++) {
+            heap[idx] = new SizeClass();
+            direct[idx] = new SizeClass();
+        }
+    }
+
+    /**
+     * Borrows a heap buffer, it has an array
+     *
+     * @param size the least size the buffer must have, it may be larger
+     * @return the lease of the buffer, cleared and ready to be filled
+     */
+    static Lease heap(int size) {
+        return lease(heap, size, false);
+    }
+
+    /**
+     * Borrows a direct buffer, it has no array
+     *
+     * @param size the least size the buffer must have, it may be larger
+     * @return the lease of the buffer, cleared and ready to be filled
+     */
+    static Lease direct(int size) {
+        return lease(direct, size, true);
+    }
+
+    private static Lease lease(SizeClass[] classes, int size, boolean isDirect) {
+        int idx = 0;
+        while (idx < SIZES.length && SIZES[idx] < size)
+            idx++;
+        SizeClass sizeClass = idx < SIZES.length ? classes[idx] : null; //larger buffers are not kept
+        ByteBuffer buffer = sizeClass != null ? sizeClass.poll() : null;
+        if (buffer != null) {
+            hits.increment();
+            buffer.clear();
+        } else {
+            misses.increment();
+            int capacity = sizeClass != null ? SIZES[idx] : size;
+            buffer = isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        outstanding.add(buffer.capacity());
+        return new Lease(buffer, sizeClass);
+    }
+
+    static long getHits() {
+        return hits.sum();
+    }
+
+    static long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the bytes of the buffers that are borrowed right now
+     */
+    static long getOutstanding() {
+        return outstanding.sum();
+    }
+
+    /**
+     * @return how many leases were forgotten without being closed
+     */
+    static long getLeaked() {
+        return leaked.sum();
+    }
+
+    /**
+     * The buffers of one size and kind that are waiting to be borrowed
+     */
+    private static class SizeClass {
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger(); //the size of the queue, which does not know it cheaply
+
+        ByteBuffer poll() {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer != null)
+                pooled.decrementAndGet();
+            return buffer;
+        }
+
+        void offer(ByteBuffer buffer) {
+            if (pooled.incrementAndGet() > MAX_POOLED) {
+                pooled.decrementAndGet();
+                return;
+            }
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * A borrowed buffer. It must not be used once the lease is closed, closing it more than once does no harm
+     */
+    static class Lease implements AutoCloseable {
+        final ByteBuffer buffer;
+        private final SizeClass sizeClass;
+        private final Returned returned;
+        private final Cleaner.Cleanable cleanable;
+
+        private Lease(ByteBuffer buffer, SizeClass sizeClass) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+            this.returned = new Returned(buffer.capacity());
+            this.cleanable = cleaner.register(this, returned);
+        }
+
+        /**
+         * @return the array of a heap buffer
+         */
+        byte[] array() {
+            return buffer.array();
+        }
+
+        @Override
+        public void close() {
+            if (!returned.given.compareAndSet(false, true))
+                return;
+            outstanding.add(-buffer.capacity());
+            cleanable.clean(); //nothing left to report
+            if (sizeClass != null)
+                sizeClass.offer(buffer);
+        }
+    }
+
+    /**
+     * Runs once a lease is closed or has been collected, it must not refer to the lease.
+     * A lease that is collected before it is closed has leaked, it is counted and its buffer is left to the garbage collector
+     */
+    private static class Returned implements Runnable {
+        final AtomicBoolean given = new AtomicBoolean();
+        private final int capacity;
+
+        Returned(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void run() {
+            if (!given.compareAndSet(false, true))
+                return;
+            outstanding.add(-capacity);
+            leaked.increment();
+        }
+    }
+}
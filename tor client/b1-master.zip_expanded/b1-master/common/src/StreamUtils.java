@@ -1,32 +1,138 @@
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Reads and copies data of a known length, the buffers of the copies are borrowed from the {@link BufferPool}
+ */
 public class StreamUtils {
-//    serverInput
+    //the longest array the JVM can allocate
+    private static final long MAX_ARRAY = Integer.MAX_VALUE - 8;
 
-    static byte[] readData(DataInputStream in, long length) throws IOException {
-        int bytesRead;
-        byte[] buffer = new byte[1024];
-        byte[] fileBytes = new byte[0];
-        while (length > 0 && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, length))) != -1) {
-            fileBytes = combineBytes(fileBytes, buffer, bytesRead);
-            length -= bytesRead;
+    /**
+     * Reads data whose length is known, like the data of a file that follows a command.
+     * The length comes from the other side, so the memory grows with the data that has arrived
+     * instead of being taken for the whole length before the first byte is there
+     *
+     * @param in     the stream to read from
+     * @param length the number of bytes to read
+     * @return the data
+     * @throws EOFException if the stream ends first
+     * @throws IOException  if the data could never fit in an array
+     */
+    static byte[] readData(InputStream in, long length) throws IOException {
+        if (length < 0 || length > MAX_ARRAY)
+            throw new IOException("Invalid data length " + length);
+        if (length <= BufferPool.BUFFER_SIZE) {
+            byte[] data = new byte[(int) length];
+            readFully(in, data, 0, data.length);
+            return data;
+        }
+        //the data is gathered in pooled buffers and only gets an array of its own once all of it is there
+        List<BufferPool.Lease> parts = new ArrayList<>();
+        try {
+            for (long left = length; left > 0; ) {
+                BufferPool.Lease part = BufferPool.heap(BufferPool.BUFFER_SIZE);
+                parts.add(part);
+                int count = (int) Math.min(left, part.array().length);
+                readFully(in, part.array(), 0, count);
+                left -= count;
+            }
+            byte[] data = new byte[(int) length];
+            int filled = 0;
+            for (BufferPool.Lease part : parts) {
+                int count = (int) Math.min(length - filled, part.array().length);
+                System.arraycopy(part.array(), 0, data, filled, count);
+                filled += count;
+            }
+            return data;
+        } finally {
+            parts.forEach(BufferPool.Lease::close);
+        }
+    }
+
+    /**
+     * Reads exactly len bytes into an array
+     *
+     * @param in  the stream to read from
+     * @param b   the array to read into
+     * @param off where the data starts in the array
+     * @param len the number of bytes to read
+     * @throws EOFException if the stream ends first
+     */
+    static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        int read = in.readNBytes(b, off, len);
+        if (read < len)
+            throw new EOFException((len - read) + " bytes are missing");
+    }
+
+    /**
+     * Skips data whose length is known, like the data of a file that is refused
+     *
+     * @param in     the stream to read from
+     * @param length the number of bytes to skip
+     * @throws EOFException if the stream ends first
+     */
+    static void skipFully(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) { //skip may give up without telling why, a read tells if the stream has ended
+                if (in.read() == -1)
+                    throw new EOFException(length + " bytes are missing");
+                skipped = 1;
+            }
+            length -= skipped;
         }
-        return fileBytes;
     }
 
     /**
-     * combines two byte arrays, all of the first one and a specific part of the second one
+     * Copies data of a known length from a stream to another one
      *
-     * @param first     the first array to combine
-     * @param second    the second array to combine
-     * @param bytesRead the part of the second array that should be read
-     * @return the combined array
+     * @param in     the stream to read from
+     * @param out    the stream to write to
+     * @param length the number of bytes to copy
+     * @throws EOFException if the input ends first, what was read until then has been written
      */
-    private static byte[] combineBytes(byte[] first, byte[] second, int bytesRead) {
-        byte[] combined = new byte[first.length + bytesRead];
-        System.arraycopy(first, 0, combined, 0, first.length);
-        System.arraycopy(second, 0, combined, first.length, bytesRead);
-        return combined;
+    static void transfer(InputStream in, OutputStream out, long length) throws IOException {
+        try (BufferPool.Lease lease = BufferPool.heap(BufferPool.BUFFER_SIZE)) {
+            byte[] buffer = lease.array();
+            while (length > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (read == -1)
+                    throw new EOFException(length + " bytes are missing");
+                out.write(buffer, 0, read);
+                length -= read;
+            }
+        }
+    }
+
+    /**
+     * Copies data of a known length from a channel to another one through a direct buffer,
+     * so the data never has to be copied into the heap. Both channels must be in blocking mode
+     *
+     * @param in     the channel to read from
+     * @param out    the channel to write to
+     * @param length the number of bytes to copy
+     * @throws EOFException if the input ends first, what was read until then has been written
+     */
+    static void transfer(ReadableByteChannel in, WritableByteChannel out, long length) throws IOException {
+        try (BufferPool.Lease lease = BufferPool.direct(BufferPool.BUFFER_SIZE)) {
+            ByteBuffer buffer = lease.buffer;
+            while (length > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length));
+                if (in.read(buffer) == -1)
+                    throw new EOFException(length + " bytes are missing");
+                buffer.flip();
+                length -= buffer.remaining();
+                while (buffer.hasRemaining())
+                    out.write(buffer);
+            }
+        }
     }
 }
@@ -0,0 +1,187 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The original format, every command is a line made by {@link Command#toMessage()}.
+ * Lines are parsed in place from a reusable buffer, the command returned by {@link #read} is reused by the next read
+ */
+public class TextWireFormat implements WireFormat {
+    private static final byte[] SEPARATOR = Command.SEPARATOR.getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] VALUE_SEPARATOR = Command.VALUE_SEPARATOR.getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LINE_END = System.lineSeparator().getBytes(StandardCharsets.ISO_8859_1);
+    private static final Map<Command, byte[]> constants = new ConcurrentHashMap<>();
+
+    private final Command command = new Command();
+    private final ValueCache cache = new ValueCache(StandardCharsets.ISO_8859_1);
+    private String lastType = "";
+    private byte[] line = new byte[256];
+    private byte[] output = new byte[256];
+    private int outputLength;
+
+    @Override
+    public Command read(DataInputStream in) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                if (length == 0)
+                    return null;
+                break;
+            }
+            if (length == line.length)
+                line = Arrays.copyOf(line, length * 2);
+            line[length++] = (byte) b;
+        }
+        if (length > 0 && line[length - 1] == '\r')
+            length--;
+        parse(line, length);
+        return command;
+    }
+
+    /**
+     * Parses a line into the reusable command
+     */
+    private void parse(byte[] line, int length) {
+        int end = indexOf(line, 0, length, SEPARATOR);
+        int typeEnd = end == -1 ? length : end;
+        if (!sameAs(lastType, line, typeEnd)) //the type is almost always one of a handful, reuse its string
+            lastType = new String(line, 0, typeEnd, StandardCharsets.ISO_8859_1);
+        command.reset(lastType);
+        while (end != -1) {
+            int start = end + SEPARATOR.length;
+            end = indexOf(line, start, length, SEPARATOR);
+            int partEnd = end == -1 ? length : end;
+            int valueStart = indexOf(line, start, partEnd, VALUE_SEPARATOR);
+            if (valueStart - start != 1) //no value separator or not a single letter key
+                continue;
+            int slot = Command.slotOf(line[start]);
+            if (slot == -1)
+                continue;
+            int offset = valueStart + VALUE_SEPARATOR.length;
+            command.setValue(slot, cache.get(slot, line, offset, partEnd - offset));
+        }
+    }
+
+    private static boolean sameAs(String string, byte[] bytes, int length) {
+        if (string.length() != length)
+            return false;
+        for (int idx = 0; idx < length; idx++) {
+            if (string.charAt(idx) != (char) (bytes[idx] & 0xff))
+                return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte[] pattern) {
+        outer:
+        for (int idx = from; idx <= to - pattern.length; idx++) {
+            for (int p = 0; p < pattern.length; p++) {
+                if (bytes[idx + p] != pattern[p])
+                    continue outer;
+            }
+            return idx;
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized void write(Command cmd, long requestId, long payloadLength, OutputStream out) throws IOException {
+        outputLength = 0;
+        if (cmd.isConstant()) {
+            byte[] encoded = constants.get(cmd);
+            if (encoded == null) {
+                encodeFields(cmd);
+                encoded = Arrays.copyOf(output, outputLength);
+                constants.put(cmd, encoded);
+                outputLength = 0;
+            }
+            append(encoded);
+        } else {
+            encodeFields(cmd);
+        }
+        if (requestId != Command.NO_REQUEST) {
+            appendKey(Command.slotOf(Command.REQUEST_ID));
+            appendNumber(requestId);
+        }
+        append(LINE_END);
+        out.write(output, 0, outputLength);
+    }
+
+    /**
+     * Encodes the type and the parameters of a command into the reusable output buffer
+     */
+    private void encodeFields(Command cmd) {
+        append(cmd.getType());
+        for (int slot = 0; slot < Command.SLOTS; slot++) {
+            if (!cmd.has(slot))
+                continue;
+            appendKey(slot);
+            if (cmd.isNumber(slot))
+                appendNumber(cmd.number(slot));
+            else
+                append(String.valueOf(cmd.value(slot)));
+        }
+    }
+
+    private void appendKey(int slot) {
+        append(SEPARATOR);
+        ensure(1);
+        output[outputLength++] = (byte) Command.keyOf(slot);
+        append(VALUE_SEPARATOR);
+    }
+
+    private void append(String value) {
+        for (int idx = 0; idx < value.length(); idx++) {
+            if (value.charAt(idx) >= 0x80) { //not plain ASCII, encode it the way PrintStream always did
+                append(value.getBytes());
+                return;
+            }
+        }
+        ensure(value.length());
+        for (int idx = 0; idx < value.length(); idx++) {
+            output[outputLength++] = (byte) value.charAt(idx);
+        }
+    }
+
+    private void append(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, output, outputLength, bytes.length);
+        outputLength += bytes.length;
+    }
+
+    private void appendNumber(long number) {
+        if (number < 0) {
+            append(String.valueOf(number));
+            return;
+        }
+        int digits = 1;
+        for (long rest = number / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int idx = outputLength + digits - 1; idx >= outputLength; idx--, number /= 10) {
+            output[idx] = (byte) ('0' + number % 10);
+        }
+        outputLength += digits;
+    }
+
+    private void ensure(int more) {
+        if (outputLength + more > output.length)
+            output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + more));
+    }
+
+    @Override
+    public boolean hasCommand(ByteBuffer buffer) {
+        for (int idx = buffer.position(); idx < buffer.limit(); idx++) {
+            if (buffer.get(idx) == '\n')
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The way commands are written on a connection. The data of a file is always written right after its command
+ */
+public interface WireFormat {
+
+    /**
+     * Reads the next command
+     *
+     * @param in the stream to read from
+     * @return the command or null if the other side has closed the connection
+     */
+    Command read(DataInputStream in) throws IOException;
+
+    /**
+     * Writes a command
+     *
+     * @param cmd           the command to write
+     * @param payloadLength the length of the data that will be written after the command
+     * @param out           the stream to write to
+     */
+    default void write(Command cmd, long payloadLength, OutputStream out) throws IOException {
+        write(cmd, Command.NO_REQUEST, payloadLength, out);
+    }
+
+    /**
+     * Writes a command that belongs to a request, the command is written whole in a single write
+     *
+     * @param cmd           the command to write
+     * @param requestId     the id of the request or {@link Command#NO_REQUEST}
+     * @param payloadLength the length of the data that will be written after the command
+     * @param out           the stream to write to
+     */
+    void write(Command cmd, long requestId, long payloadLength, OutputStream out) throws IOException;
+
+    /**
+     * Checks without consuming anything if a whole command can be read from the buffered data
+     *
+     * @param buffer the data received so far, ready for reading
+     * @return true if {@link #read} would not have to wait for more data
+     */
+    boolean hasCommand(ByteBuffer buffer);
+
+    /**
+     * Picks the format on the server side, from the first data a client sends.
+     * Clients of the binary format start with a handshake, anything else is a client of the text format
+     *
+     * @param in  the stream of the client, it must support mark
+     * @param out the stream the answer to the handshake is written to
+     * @return the format the client uses or null if the client has closed the connection
+     */
+    static WireFormat accept(DataInputStream in, OutputStream out) throws IOException {
+        in.mark(1);
+        int first = in.read();
+        if (first == -1)
+            return null;
+        if (first != BinaryWireFormat.PREFACE[0]) {
+            in.reset();
+            return new TextWireFormat();
+        }
+        return BinaryWireFormat.acceptHandshake(in, out);
+    }
+
+    /**
+     * Picks the format on the client side, right after connecting
+     *
+     * @param in     the stream of the server
+     * @param out    the stream to the server
+     * @param binary true to ask the server for the binary format, false to use the text format old servers understand
+     * @return the format to use
+     */
+    static WireFormat connect(DataInputStream in, OutputStream out, boolean binary) throws IOException {
+        if (!binary)
+            return new TextWireFormat();
+        return BinaryWireFormat.startHandshake(in, out);
+    }
+
+    /**
+     * Checks if the server can pick a format from the buffered data
+     *
+     * @param buffer the data received so far, ready for reading
+     * @return true if {@link #accept} would not have to wait for more data
+     */
+    static boolean canAccept(ByteBuffer buffer) {
+        if (!buffer.hasRemaining())
+            return false;
+        return buffer.get(buffer.position()) != BinaryWireFormat.PREFACE[0] || buffer.remaining() >= BinaryWireFormat.HANDSHAKE_LENGTH;
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Lets the operator of the server see the open connections and close them, through a line based console
+ * (for example nc 127.0.0.1 1314). It only listens to loopback addresses and unix domain sockets,
+ * so only someone on the machine of the server can use it. The commands are
+ * connections, close followed by the id of a connection, metrics and quit
+ */
+class AdminConsole {
+    private static final List<ServerSocketChannel> channels = new CopyOnWriteArrayList<>();
+
+    /**
+     * Starts listening to the addresses of the console
+     *
+     * @param addresses the addresses, nothing is started if there are none
+     * @throws IllegalArgumentException if an address could be reached from other machines
+     */
+    static void start(List<SocketAddress> addresses) throws IOException {
+        for (SocketAddress address : addresses) {
+            if (address instanceof InetSocketAddress && !((InetSocketAddress) address).getAddress().isLoopbackAddress())
+                throw new IllegalArgumentException("The admin console can only listen to loopback addresses, not to " + address);
+        }
+        for (SocketAddress address : addresses) {
+            ServerSocketChannel channel = Endpoints.open(address);
+            channels.add(channel);
+            System.out.println("Admin console listening to " + address);
+            Thread t = new Thread(() -> accept(channel), "admin");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Stops the console, the sessions that are open end with the process
+     */
+    static void close() {
+        for (ServerSocketChannel channel : channels) {
+            try {
+                Endpoints.close(channel);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void accept(ServerSocketChannel channel) {
+        while (channel.isOpen()) {
+            try {
+                SocketChannel session = channel.accept();
+                Thread t = new Thread(() -> serve(session), "admin-session");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (channel.isOpen())
+                    System.err.println("Error in admin connection attempt.");
+            }
+        }
+    }
+
+    private static void serve(SocketChannel session) {
+        try (session) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(session), StandardCharsets.UTF_8));
+            PrintStream out = new PrintStream(Channels.newOutputStream(session), true, StandardCharsets.UTF_8);
+            if (!ServerConfig.ADMIN_PASSWORD.isEmpty()) {
+                out.println("password:");
+                if (!ServerConfig.ADMIN_PASSWORD.equals(in.readLine())) {
+                    out.println("wrong password");
+                    return;
+                }
+            }
+            out.println("commands: connections, close <id>, metrics, quit");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] words = line.trim().split("\\s+");
+                switch (words[0].toLowerCase()) {
+                    case "":
+                        break;
+                    case "connections":
+                        List<String> connections = ConnectionReaper.describeAll();
+                        connections.forEach(out::println);
+                        out.println(connections.size() + " connections");
+                        break;
+                    case "close":
+                        out.println(close(words));
+                        break;
+                    case "metrics":
+                        out.println(Metrics.report());
+                        break;
+                    case "quit":
+                        return;
+                    default:
+                        out.println("unknown command " + words[0]);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Admin console error:" + e.getMessage());
+        }
+    }
+
+    private static String close(String[] words) {
+        if (words.length != 2)
+            return "usage: close <id>";
+        try {
+            long id = Long.parseLong(words[1]);
+            if (!ConnectionReaper.close(id))
+                return "no connection " + id;
+            System.out.println("Connection " + id + " closed from the admin console");
+            return "closed " + id;
+        } catch (NumberFormatException e) {
+            return "invalid id " + words[1];
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Serves one type of command, handlers are looked up by command type in {@link CommandHandlers}
+ */
+@FunctionalInterface
+interface CommandHandler {
+
+    /**
+     * Starts serving a command. This runs on the thread that reads the connection, so it should only read
+     * what belongs to the command (like the data of a file) and leave the slow work to {@link Exchange#supply}
+     *
+     * @param cmd      the command, it is reused once this returns so take what is needed out of it
+     * @param exchange the connection the command came from
+     * @return the reply, completed whenever the command has been served, or with null if the command is not answered
+     */
+    CompletableFuture<Reply> handle(Command cmd, Exchange exchange) throws IOException;
+
+    /**
+     * What a handler can do with the connection of the command it serves
+     */
+    interface Exchange {
+
+        /**
+         * Reads the data that follows the command, the memory it takes is reserved first
+         *
+         * @throws java.util.concurrent.RejectedExecutionException if there is no memory for the data, it has been skipped then
+         */
+        byte[] readPayload(long length) throws IOException;
+
+        /**
+         * Opens the data that follows the command as a stream, for data too large to be held in memory.
+         * It has to be read before the handler returns, closing it skips whatever has not been read
+         *
+         * @param length the length of the data
+         * @return the data, it ends after length bytes
+         */
+        InputStream streamPayload(long length) throws IOException;
+
+        /**
+         * Reserves memory for data the command will hold, like a file it loads.
+         * The memory is given back once the command has been answered
+         *
+         * @throws java.util.concurrent.RejectedExecutionException if there is no memory left
+         */
+        void reserve(long bytes) throws IOException;
+
+        /**
+         * Keeps something open until the command has been answered, like a file the reply is read from
+         */
+        void hold(AutoCloseable resource);
+
+        /**
+         * Skips the data that follows the command
+         */
+        void skipPayload(long length) throws IOException;
+
+        /**
+         * Reads the next command from the connection, for commands that carry other commands
+         *
+         * @return the command, reused by the next read
+         */
+        Command readCommand() throws IOException;
+
+        /**
+         * Runs the slow part of a command on a pool
+         *
+         * @param executor the pool to run on
+         * @param work     serves the command
+         * @return the reply of the work
+         * @throws java.util.concurrent.RejectedExecutionException if the pool is saturated
+         */
+        CompletableFuture<Reply> supply(Executor executor, Callable<Reply> work);
+
+        /**
+         * @return the round trip time and throughput measured on the connection
+         */
+        TransferStats stats();
+
+        /**
+         * Writes a reply before the command has been fully served, for commands that are answered in parts.
+         * The reply is written by the writer of the connection, the caller does not wait for the client to take it
+         *
+         * @return completed once the reply has been written, or with the error that stopped it
+         */
+        CompletableFuture<Void> reply(Reply reply);
+    }
+}
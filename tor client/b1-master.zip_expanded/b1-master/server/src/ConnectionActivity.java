@@ -0,0 +1,203 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of what a connection is doing and when it last made progress, so that stalled connections can be reaped.
+ * What it knows can be looked at from other threads without locking out the connection, see {@link AdminConsole}
+ */
+class ConnectionActivity {
+
+    /**
+     * The phases a connection goes through while serving a command
+     */
+    enum Phase {
+        /**
+         * waiting for the client to start a new command
+         */
+        IDLE,
+        /**
+         * the client has started sending a command that has not been received whole yet
+         */
+        HEADER,
+        /**
+         * receiving the data of a file
+         */
+        PAYLOAD,
+        /**
+         * the server is working on a command
+         */
+        PROCESSING
+    }
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    private final long id = ids.incrementAndGet();
+    private final long openedAt = System.nanoTime();
+    private final Closeable connection;
+    private volatile Phase phase = Phase.IDLE;
+    private volatile long lastProgress = openedAt;
+    private volatile long replyProgress; //when the reply that is written last got data out, 0 while none is written
+    private final AtomicInteger requests = new AtomicInteger();
+    private final TransferStats transferStats = new TransferStats();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private volatile String remote = "unix socket";
+    private volatile String user; //the last user whose command succeeded
+    private volatile String command; //the type of the last command
+    private long sampledBytes; //the bytes carried when the rate was last asked for, guarded by this
+    private long sampledAt = openedAt; //guarded by this
+
+    /**
+     * @param connection closes the connection when it is reaped
+     */
+    ConnectionActivity(Closeable connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Records that data has been received from the client
+     *
+     * @param bytes the number of bytes received
+     */
+    void received(int bytes) {
+        if (bytes <= 0)
+            return;
+        bytesIn.add(bytes);
+        lastProgress = System.nanoTime();
+        if (phase == Phase.IDLE)
+            phase = Phase.HEADER;
+    }
+
+    /**
+     * Records that data has been written to the client
+     *
+     * @param bytes the number of bytes written
+     */
+    void sent(int bytes) {
+        bytesOut.add(bytes);
+        if (replyProgress != 0)
+            replyProgress = System.nanoTime();
+    }
+
+    /**
+     * Records that a reply has started to be written, until it is done the client has to take its data.
+     * Replies are written one at a time, while the connection goes on reading the next commands
+     */
+    void replyStarted() {
+        replyProgress = System.nanoTime();
+    }
+
+    void replyFinished() {
+        replyProgress = 0;
+    }
+
+    /**
+     * @return the milliseconds since the reply that is being written last got data out, 0 if no reply is written
+     */
+    long replyStalledMillis() {
+        long progress = replyProgress;
+        return progress == 0 ? 0 : (System.nanoTime() - progress) / 1_000_000L;
+    }
+
+    /**
+     * Records that the connection has started to serve a command
+     *
+     * @param type the type of the command
+     */
+    void started(String type) {
+        command = type;
+    }
+
+    /**
+     * Records that a user has been let in, what the connection does from now on is done for that user
+     */
+    void authenticated(String name) {
+        user = name;
+    }
+
+    void setRemote(String remote) {
+        this.remote = remote;
+    }
+
+    /**
+     * Moves the connection to a new phase, the time spent in it is counted from now
+     *
+     * @param phase the new phase
+     */
+    void enter(Phase phase) {
+        this.phase = phase;
+        lastProgress = System.nanoTime();
+    }
+
+    Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return how fast the connection carries uploads, and the window it is given for them
+     */
+    TransferStats getTransferStats() {
+        return transferStats;
+    }
+
+    /**
+     * Records that a request of the connection has started to be served apart from the connection
+     */
+    void requestStarted() {
+        requests.incrementAndGet();
+    }
+
+    /**
+     * Records that a request that was served apart from the connection has been answered, this counts as progress
+     */
+    void requestFinished() {
+        requests.decrementAndGet();
+        lastProgress = System.nanoTime();
+    }
+
+    /**
+     * @return true if requests of the connection are still being served, an idle connection that waits for them is not stalled
+     */
+    boolean hasRequests() {
+        return requests.get() > 0;
+    }
+
+    /**
+     * @return the milliseconds since the connection last made progress
+     */
+    long stalledMillis() {
+        return (System.nanoTime() - lastProgress) / 1_000_000L;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /**
+     * Describes the connection in a single line, for example
+     * id=3 remote=/127.0.0.1:50412 user=alice command=SEND phase=PAYLOAD in=1048576 out=120 rate=524288 age=2
+     * with the bytes received and sent, the bytes per second carried since the last description and the age in seconds
+     */
+    String describe() {
+        long now = System.nanoTime();
+        long bytes = bytesIn.sum() + bytesOut.sum();
+        long rate;
+        synchronized (this) { //only the callers of this method take the lock, never the connection itself
+            rate = now > sampledAt ? (bytes - sampledBytes) * 1_000_000_000L / (now - sampledAt) : 0;
+            sampledBytes = bytes;
+            sampledAt = now;
+        }
+        return "id=" + id + " remote=" + remote + " user=" + (user != null ? user : "-") + " command=" + (command != null ? command : "-")
+                + " phase=" + phase + " in=" + bytesIn.sum() + " out=" + bytesOut.sum() + " rate=" + rate + " age=" + (now - openedAt) / 1_000_000_000L;
+    }
+
+    void close() {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
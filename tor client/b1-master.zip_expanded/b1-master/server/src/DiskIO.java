@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reads and writes files through asynchronous channels that run on a few shared threads, so the thread that serves
+ * a connection goes on with the network while the disk works: a reader reads the next slice of a file while the last one
+ * is being sent, a writer writes a slice while the next one is being received. A slow disk then only slows down
+ * what really waits for it, and a few threads keep the disk work of all the transfers going
+ */
+class DiskIO {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService threads = Executors.newFixedThreadPool(ServerConfig.DISK_THREADS, task -> {
+        Thread t = new Thread(task, "disk-" + threadCount.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    });
+    private static final LongAdder bytesRead = new LongAdder();
+    private static final LongAdder bytesWritten = new LongAdder();
+
+    static {
+        Metrics.register("disk.read", bytesRead::sum);
+        Metrics.register("disk.written", bytesWritten::sum);
+    }
+
+    /**
+     * @return a writer that replaces the file, or creates it
+     */
+    static Writer writer(Path path) throws IOException {
+        return new Writer(AsynchronousFileChannel.open(path,
+                EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), threads));
+    }
+
+    /**
+     * @param position where reading starts
+     * @return a reader of the file, it starts reading right away
+     */
+    static Reader reader(Path path, long position) throws IOException {
+        return new Reader(AsynchronousFileChannel.open(path, EnumSet.of(StandardOpenOption.READ), threads), position);
+    }
+
+    /**
+     * Reads or writes a whole buffer, a channel may take several calls for it
+     *
+     * @return the number of bytes, less than the buffer had room for only if the file ended
+     */
+    private static CompletableFuture<Integer> transfer(AsynchronousFileChannel channel, ByteBuffer buffer, long position, boolean write) {
+        Transfer transfer = new Transfer(channel, buffer, position, write);
+        try {
+            transfer.next();
+        } catch (RuntimeException e) {
+            transfer.done.completeExceptionally(e);
+        }
+        return transfer.done;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the disk");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Goes on reading or writing a buffer until it is done, on the threads of the channel
+     */
+    private static class Transfer implements CompletionHandler<Integer, Void> {
+        final CompletableFuture<Integer> done = new CompletableFuture<>();
+        private final AsynchronousFileChannel channel;
+        private final ByteBuffer buffer;
+        private final long position;
+        private final boolean write;
+
+        Transfer(AsynchronousFileChannel channel, ByteBuffer buffer, long position, boolean write) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.position = position;
+            this.write = write;
+        }
+
+        void next() {
+            if (write)
+                channel.write(buffer, position + buffer.position(), null, this);
+            else
+                channel.read(buffer, position + buffer.position(), null, this);
+        }
+
+        @Override
+        public void completed(Integer count, Void ignored) {
+            if (count >= 0 && buffer.hasRemaining()) {
+                next();
+                return;
+            }
+            (write ? bytesWritten : bytesRead).add(buffer.position());
+            done.complete(buffer.position());
+        }
+
+        @Override
+        public void failed(Throwable error, Void ignored) {
+            done.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Writes a file from the start on, every write returns once its data has been copied
+     * and only waits for the write before it
+     */
+    static class Writer implements AutoCloseable {
+        private final AsynchronousFileChannel channel;
+        //one buffer is filled while the other one is written
+        private final BufferPool.Lease[] buffers = {BufferPool.direct(BufferPool.BUFFER_SIZE), BufferPool.direct(BufferPool.BUFFER_SIZE)};
+        private int next;
+        private long position;
+        private CompletableFuture<Integer> pending = CompletableFuture.completedFuture(0);
+
+        private Writer(AsynchronousFileChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(byte[] data) throws IOException {
+            write(data, 0, data.length);
+        }
+
+        void write(byte[] data, int off, int len) throws IOException {
+            while (len > 0) {
+                ByteBuffer buffer = buffers[next].buffer; //free, the write that used it has been waited for
+                int count = Math.min(len, buffer.capacity());
+                buffer.clear();
+                buffer.put(data, off, count).flip();
+                await(pending);
+                pending = transfer(channel, buffer, position, true);
+                position += count;
+                next ^= 1;
+                off += count;
+                len -= count;
+            }
+        }
+
+        /**
+         * Waits for the last write and closes the file
+         *
+         * @throws IOException if a write has failed
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                await(pending);
+            } finally {
+                pending.handle((count, error) -> null).join(); //the buffers must not be given back while they are written
+                for (BufferPool.Lease buffer : buffers)
+                    buffer.close();
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a file a slice at a time, the next slice is read while the caller works on the last one
+     */
+    static class Reader implements AutoCloseable {
+        private final AsynchronousFileChannel channel;
+        private final BufferPool.Lease lease = BufferPool.direct(BufferPool.BUFFER_SIZE);
+        private final long end;
+        private long position;
+        private CompletableFuture<Integer> fetch; //the read under way, null once its data is in the buffer
+
+        private Reader(AsynchronousFileChannel channel, long position) throws IOException {
+            this.channel = channel;
+            this.position = position;
+            try {
+                this.end = channel.size();
+            } catch (IOException e) {
+                lease.close();
+                channel.close();
+                throw e;
+            }
+            fetchNext();
+        }
+
+        private void fetchNext() {
+            ByteBuffer buffer = lease.buffer;
+            buffer.clear().limit((int) Math.min(buffer.capacity(), Math.max(0, end - position)));
+            fetch = buffer.hasRemaining() ? transfer(channel, buffer, position, false) : CompletableFuture.completedFuture(0);
+            position += buffer.limit();
+        }
+
+        /**
+         * @param b   where the data goes
+         * @param len the most that is read
+         * @return the number of bytes read, -1 at the end of the file
+         */
+        int read(byte[] b, int len) throws IOException {
+            ByteBuffer buffer = lease.buffer;
+            if (fetch != null) {
+                await(fetch);
+                fetch = null;
+                buffer.flip();
+            }
+            if (!buffer.hasRemaining())
+                return -1;
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, 0, count);
+            if (!buffer.hasRemaining() && position < end)
+                fetchNext(); //the disk reads on while the caller works on the data
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fetch != null)
+                fetch.handle((count, error) -> null).join(); //the buffer must not be given back while it is read into
+            lease.close();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The addresses the server listens to. A single server can listen to several of them at once,
+ * they are written like tcp:1313, tcp:127.0.0.1:1313 or unix:/run/server.sock and separated with commas.
+ * Unix domain sockets came with Java 16, their classes are looked up when the server starts
+ * so it still runs on Java 11, where unix endpoints are refused
+ */
+class Endpoints {
+    private static final Class<?> UNIX_ADDRESS = unixAddressClass();
+
+    /**
+     * @param spec the endpoints separated with commas
+     * @return the addresses of the endpoints, a list that can be added to
+     * @throws IllegalArgumentException if an endpoint cannot be understood
+     */
+    static List<SocketAddress> parse(String spec) {
+        List<SocketAddress> addresses = new ArrayList<>();
+        for (String endpoint : spec.split(",")) {
+            endpoint = endpoint.trim();
+            if (endpoint.isEmpty())
+                continue;
+            int colon = endpoint.indexOf(':');
+            String scheme = colon < 0 ? "" : endpoint.substring(0, colon);
+            String rest = endpoint.substring(colon + 1);
+            try {
+                if (scheme.equals("tcp")) {
+                    int port = rest.lastIndexOf(':');
+                    addresses.add(port < 0 ? new InetSocketAddress(Integer.parseInt(rest))
+                            : new InetSocketAddress(rest.substring(0, port), Integer.parseInt(rest.substring(port + 1))));
+                } else if (scheme.equals("unix") && !rest.isEmpty()) {
+                    if (UNIX_ADDRESS == null)
+                        throw new IllegalArgumentException("Unix domain sockets require Java 16 or newer, cannot use endpoint " + endpoint);
+                    addresses.add((SocketAddress) unix(null, "of", new Class<?>[]{String.class}, rest));
+                } else {
+                    throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in endpoint " + endpoint);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid endpoint " + endpoint + ": " + e.getMessage());
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * @return true if one of the addresses is a tcp port with the given number
+     */
+    static boolean hasPort(List<SocketAddress> addresses, int port) {
+        return addresses.stream().anyMatch(address -> address instanceof InetSocketAddress && ((InetSocketAddress) address).getPort() == port);
+    }
+
+    /**
+     * Opens a channel that listens to an address, a unix domain socket left behind by an earlier run is replaced
+     *
+     * @param address the address to listen to
+     * @return the channel, in blocking mode
+     */
+    static ServerSocketChannel open(SocketAddress address) throws IOException {
+        ServerSocketChannel channel;
+        if (isUnix(address)) {
+            Files.deleteIfExists(pathOf(address));
+            try {
+                ProtocolFamily family = StandardProtocolFamily.valueOf("UNIX");
+                channel = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, family);
+            } catch (InvocationTargetException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new IOException("Unix domain sockets require Java 16 or newer", e);
+            }
+        } else {
+            channel = ServerSocketChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        }
+        try {
+            channel.bind(address, ServerConfig.BACKLOG);
+        } catch (IOException e) {
+            channel.close();
+            throw new IOException("Cannot listen to " + address + ": " + e.getMessage(), e);
+        }
+        return channel;
+    }
+
+    /**
+     * Closes a channel that was opened by {@link #open}, the file of a unix domain socket is removed
+     */
+    static void close(ServerSocketChannel channel) throws IOException {
+        SocketAddress address = channel.isOpen() ? channel.getLocalAddress() : null;
+        channel.close();
+        if (isUnix(address))
+            Files.deleteIfExists(pathOf(address));
+    }
+
+    private static Class<?> unixAddressClass() {
+        try {
+            return Class.forName("java.net.UnixDomainSocketAddress");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static boolean isUnix(SocketAddress address) {
+        return UNIX_ADDRESS != null && UNIX_ADDRESS.isInstance(address);
+    }
+
+    private static Path pathOf(SocketAddress address) throws IOException {
+        return (Path) unix(address, "getPath", new Class<?>[0]);
+    }
+
+    /**
+     * Calls a method of UnixDomainSocketAddress, which must be there
+     *
+     * @param target the address, null for a static method
+     */
+    private static Object unix(Object target, String name, Class<?>[] parameters, Object... args) throws IOException {
+        try {
+            return UNIX_ADDRESS.getMethod(name, parameters).invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) //like the InvalidPathException of a path that cannot be used
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets are not supported: " + e.getMessage(), e);
+        }
+    }
+}
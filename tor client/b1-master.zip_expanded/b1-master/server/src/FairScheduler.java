@@ -0,0 +1,163 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A fixed number of threads that serve the work of the users in turns, every user has a queue of its own
+ * and the threads take one task of every user that has work waiting, round and round.
+ * A user with hundreds of uploads in the queue only gets one task in before every other user gets one,
+ * short control work (like starting an upload) goes before any of it.
+ * The queue of a user is dropped once none of its work is waiting or running, with the wait it reported
+ */
+class FairScheduler {
+    private final Map<String, UserQueue> users = new HashMap<>(); //guarded by this
+    private final Queue<UserQueue> turns = new ArrayDeque<>(); //the users with work waiting, in the order they are served
+    private final Queue<Task> control = new ArrayDeque<>();
+    private final String name;
+    private final int capacity;
+    private final int userCapacity;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private int queued; //guarded by this
+
+    /**
+     * @param name         the name of the scheduler, used for its threads and its metrics
+     * @param threads      the number of threads
+     * @param capacity     how many tasks may wait for a thread
+     * @param userCapacity how many tasks of a single user may wait for a thread
+     */
+    FairScheduler(String name, int threads, int capacity, int userCapacity) {
+        this.name = name;
+        this.capacity = capacity;
+        this.userCapacity = userCapacity;
+        for (int idx = 0; idx < threads; idx++) {
+            Thread t = new Thread(this::work, name + "-" + idx);
+            t.setDaemon(true);
+            t.start();
+        }
+        Metrics.register(name + ".active", active::get);
+        Metrics.register(name + ".queued", () -> {
+            synchronized (this) {
+                return queued;
+            }
+        });
+        Metrics.register(name + ".rejected", rejected::sum);
+    }
+
+    /**
+     * @param user    the user the work is done for
+     * @param control true for short work that answers control commands, it is served before the work of any user
+     * @return runs tasks for the user, throws {@link RejectedExecutionException} if the queue of the user or the scheduler is full
+     */
+    Executor forUser(String user, boolean control) {
+        String key = user.toLowerCase();
+        return task -> submit(key, control, task);
+    }
+
+    private synchronized void submit(String key, boolean urgent, Runnable task) {
+        UserQueue user = users.computeIfAbsent(key, UserQueue::new);
+        if (queued >= capacity || (!urgent && user.tasks.size() >= userCapacity)) {
+            rejected.increment();
+            dropIfIdle(user);
+            throw new RejectedExecutionException("Too much work waiting for " + name);
+        }
+        queued++;
+        user.pending++;
+        if (urgent) {
+            control.add(new Task(user, task));
+        } else {
+            if (user.tasks.isEmpty())
+                turns.add(user);
+            user.tasks.add(new Task(user, task));
+        }
+        notify();
+    }
+
+    private synchronized Task take() throws InterruptedException {
+        while (queued == 0)
+            wait();
+        queued--;
+        Task task = control.poll();
+        if (task != null)
+            return task;
+        UserQueue user = turns.remove();
+        task = user.tasks.remove();
+        if (!user.tasks.isEmpty())
+            turns.add(user); //the user goes to the back of the line with the rest of its work
+        return task;
+    }
+
+    private void work() {
+        while (true) {
+            Task task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            task.user.waited(System.nanoTime() - task.queuedAt);
+            active.incrementAndGet();
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error in " + Thread.currentThread().getName() + ": " + e);
+            } finally {
+                active.decrementAndGet();
+                finished(task.user);
+            }
+        }
+    }
+
+    private synchronized void finished(UserQueue user) {
+        user.pending--;
+        dropIfIdle(user);
+    }
+
+    private void dropIfIdle(UserQueue user) {
+        if (user.pending == 0 && users.remove(user.key, user))
+            Metrics.unregister(name + ".wait." + user.key, user.averageWait);
+    }
+
+    private static class Task {
+        final UserQueue user;
+        final Runnable runnable;
+        final long queuedAt = System.nanoTime();
+
+        Task(UserQueue user, Runnable runnable) {
+            this.user = user;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * The work of a single user and how long it has been waiting
+     */
+    private class UserQueue {
+        final String key;
+        final Queue<Task> tasks = new ArrayDeque<>(); //guarded by the scheduler
+        int pending; //the tasks of the user that wait or run, control work too, guarded by the scheduler
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder served = new LongAdder();
+        //the average wait in milliseconds of the tasks of the user
+        final LongSupplier averageWait = () -> {
+            long count = served.sum();
+            return count == 0 ? 0 : waitNanos.sum() / count / 1_000_000;
+        };
+
+        UserQueue(String key) {
+            this.key = key;
+            Metrics.register(name + ".wait." + key, averageWait);
+        }
+
+        void waited(long nanos) {
+            waitNanos.add(nanos);
+            served.increment();
+        }
+    }
+}
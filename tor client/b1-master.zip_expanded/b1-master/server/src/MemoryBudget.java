@@ -0,0 +1,99 @@
+import java.io.InterruptedIOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The bytes of files all transfers together may hold in memory. A transfer reserves what it needs before it buffers
+ * any data and gives it back once it is done, a transfer that does not fit waits for others to finish
+ * and is refused if that takes too long, so a few large files cannot run the server out of memory
+ */
+class MemoryBudget {
+    private static final long LIMIT = ServerConfig.MEMORY_BUDGET > 0 ? ServerConfig.MEMORY_BUDGET * 1024L * 1024L : Runtime.getRuntime().maxMemory() / 2;
+    private static final long WAIT_NANOS = ServerConfig.MEMORY_WAIT * 1_000_000_000L;
+
+    private static long reserved; //guarded by the class
+    private static int waiting; //guarded by the class
+    private static final LongAdder waitNanos = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+
+    static {
+        Metrics.register("memory.reserved", MemoryBudget::getReserved);
+        Metrics.register("memory.waiting", MemoryBudget::getWaiting);
+        Metrics.register("memory.waitMillis", () -> waitNanos.sum() / 1_000_000);
+        Metrics.register("memory.rejected", rejected::sum);
+    }
+
+    /**
+     * Reserves memory, waits for it if it is all taken
+     *
+     * @param bytes the number of bytes
+     * @return the reservation, closing it gives the memory back
+     * @throws RejectedExecutionException if the memory did not become free in time or there will never be enough
+     * @throws InterruptedIOException     if the thread is interrupted while it waits
+     */
+    static Reservation reserve(long bytes) throws InterruptedIOException {
+        if (bytes <= 0)
+            return new Reservation(0);
+        if (bytes > LIMIT) {
+            rejected.increment();
+            throw new RejectedExecutionException("A transfer of " + bytes + " bytes does not fit in the memory of the server");
+        }
+        long start = System.nanoTime();
+        try {
+            synchronized (MemoryBudget.class) {
+                while (reserved + bytes > LIMIT) {
+                    long left = start + WAIT_NANOS - System.nanoTime();
+                    if (left <= 0) {
+                        rejected.increment();
+                        throw new RejectedExecutionException("No memory left for a transfer of " + bytes + " bytes");
+                    }
+                    waiting++;
+                    try {
+                        MemoryBudget.class.wait(left / 1_000_000 + 1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for memory");
+                    } finally {
+                        waiting--;
+                    }
+                }
+                reserved += bytes;
+            }
+        } finally {
+            waitNanos.add(System.nanoTime() - start);
+        }
+        return new Reservation(bytes);
+    }
+
+    private static synchronized void release(long bytes) {
+        reserved -= bytes;
+        MemoryBudget.class.notifyAll();
+    }
+
+    static synchronized long getReserved() {
+        return reserved;
+    }
+
+    static synchronized long getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * Memory that has been reserved, it is given back only once however often it is closed
+     */
+    static class Reservation implements AutoCloseable {
+        private final AtomicLong bytes;
+
+        private Reservation(long bytes) {
+            this.bytes = new AtomicLong(bytes);
+        }
+
+        @Override
+        public void close() {
+            long released = bytes.getAndSet(0);
+            if (released > 0)
+                release(released);
+        }
+    }
+}
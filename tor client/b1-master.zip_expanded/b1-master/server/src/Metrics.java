@@ -0,0 +1,71 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters and gauges of the server, they can be printed periodically to see how the server is doing
+ */
+class Metrics {
+    private static final Map<String, LongSupplier> values = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a value that will be reported
+     *
+     * @param name  the name of the value, for example workers.queued
+     * @param value supplies the current value whenever a report is made
+     */
+    static void register(String name, LongSupplier value) {
+        values.put(name, value);
+    }
+
+    /**
+     * Stops reporting a value, like the value of something that is gone
+     *
+     * @param name  the name the value was registered with
+     * @param value the value that was registered, a value registered under the name since then is kept
+     */
+    static void unregister(String name, LongSupplier value) {
+        values.remove(name, value);
+    }
+
+    /**
+     * @return the current values of all registered metrics sorted by name
+     */
+    static Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        values.forEach((name, value) -> snapshot.put(name, value.getAsLong()));
+        return snapshot;
+    }
+
+    /**
+     * @return a single line with all the current values
+     */
+    static String report() {
+        StringBuilder builder = new StringBuilder("Metrics:");
+        snapshot().forEach((name, value) -> builder.append(' ').append(name).append('=').append(value));
+        return builder.toString();
+    }
+
+    /**
+     * Starts a thread that prints the report every few seconds
+     *
+     * @param seconds how often to print, nothing is printed if it is not positive
+     */
+    static void startReporting(int seconds) {
+        if (seconds <= 0)
+            return;
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(seconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println(report());
+            }
+        }, "metrics");
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * What a command is answered with, the reply command and the data of a file if one follows it
+ */
+class Reply {
+    //tells the client that the server cannot serve its command right now
+    static final Reply BUSY = new Reply(new Command(Command.BUSY).addParameter(Command.ERROR, "Server is busy, please try again later").constant());
+    static final Reply SHUTTING_DOWN = new Reply(new Command(Command.BUSY).addParameter(Command.ERROR, "Server is shutting down, please try again later").constant());
+
+    final Command command;
+    final byte[] payload;
+    private final Payload stream;
+    private final long streamLength;
+
+    /**
+     * Writes data that is too large to be held in memory while the reply is written
+     */
+    @FunctionalInterface
+    interface Payload {
+        /**
+         * @param out the connection, if this fails part of the data may have been written and the connection cannot go on
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    Reply(Command command) {
+        this(command, null);
+    }
+
+    /**
+     * @param command the reply command
+     * @param payload the data written right after the command, null if there is none
+     */
+    Reply(Command command, byte[] payload) {
+        this.command = command;
+        this.payload = payload;
+        this.stream = null;
+        this.streamLength = 0;
+    }
+
+    /**
+     * @param command the reply command
+     * @param length  the length of the data
+     * @param stream  writes exactly length bytes right after the command
+     */
+    Reply(Command command, long length, Payload stream) {
+        this.command = command;
+        this.payload = null;
+        this.stream = stream;
+        this.streamLength = length;
+    }
+
+    long payloadLength() {
+        return stream != null ? streamLength : payload == null ? 0 : payload.length;
+    }
+
+    /**
+     * Writes the data that follows the command, if there is any
+     */
+    void writePayload(OutputStream out) throws IOException {
+        if (payload != null)
+            out.write(payload);
+        else if (stream != null)
+            stream.writeTo(out);
+    }
+
+    static Reply error(String type, String message) {
+        return new Reply(new Command(type).addParameter(Command.ERROR, message));
+    }
+
+    /**
+     * Turns a handler that failed into the reply the client gets
+     *
+     * @param type  the type of the command that failed
+     * @param error why it failed
+     * @return busy if a pool refused the work, otherwise an error reply of the type of the command
+     */
+    static Reply failure(String type, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof RejectedExecutionException)
+            return BUSY;
+        return error(type, String.valueOf(cause.getMessage()));
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts connections on one or more channels and spreads them over a few event loops,
+ * so idle clients only cost a file descriptor and not a thread
+ */
+class SelectorServer implements Listener {
+    private final List<ServerSocketChannel> serverChannels;
+    private final EventLoop[] loops = new EventLoop[ServerConfig.EVENT_LOOPS];
+    private final WorkerPool workers = new WorkerPool("workers", ServerConfig.WORKER_THREADS, ServerConfig.WORKER_QUEUE);
+    private final ConnectionLimiter limiter = new ConnectionLimiter(ServerConfig.MAX_CONNECTIONS);
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Starts the event loops
+     *
+     * @param serverChannels the channels to accept connections from, every channel is served by the same loops and workers
+     * @param handlers       serve the commands
+     */
+    SelectorServer(List<ServerSocketChannel> serverChannels, CommandHandlers handlers) throws IOException {
+        this.serverChannels = serverChannels;
+        for (int idx = 0; idx < loops.length; idx++) {
+            loops[idx] = new EventLoop(workers, limiter, handlers);
+            Thread t = new Thread(loops[idx], "event-loop-" + idx);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Accepts connections on every channel, the first one is served by the calling thread
+     */
+    @Override
+    public void run() {
+        for (int idx = 1; idx < serverChannels.size(); idx++) {
+            ServerSocketChannel serverChannel = serverChannels.get(idx);
+            Thread t = new Thread(() -> accept(serverChannel), "accept-" + idx);
+            t.setDaemon(true);
+            t.start();
+        }
+        accept(serverChannels.get(0));
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel clientChannel = serverChannel.accept();
+                if (!limiter.tryAcquire()) {
+                    System.out.println("Refused connection : " + clientChannel.getRemoteAddress());
+                    ClientConnection.refuse(clientChannel);
+                    continue;
+                }
+                System.out.println("Accepted connection : " + clientChannel.getRemoteAddress());
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(clientChannel);
+            } catch (Exception e) {
+                if (serverChannel.isOpen())
+                    System.err.println("Error in connection attempt.");
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections, the connections that are open are left alone
+     */
+    @Override
+    public void close() throws IOException {
+        for (ServerSocketChannel serverChannel : serverChannels)
+            Endpoints.close(serverChannel);
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * The settings of the server, they are read from system properties so they can be given on the command line
+ * (for example -Dserver.mode=virtual)
+ */
+class ServerConfig {
+
+    /**
+     * The ways the connections of the clients can be served
+     */
+    enum Mode {
+        /**
+         * connections wait on the selectors of a few event loops and commands are served on a worker pool
+         */
+        SELECTOR,
+        /**
+         * every connection gets its own platform thread
+         */
+        THREADS,
+        /**
+         * every connection gets its own virtual thread
+         */
+        VIRTUAL
+    }
+
+    static final Mode MODE = Mode.valueOf(System.getProperty("server.mode", "selector").toUpperCase());
+    //the addresses to listen to, see Endpoints, for example tcp:1313,unix:/run/server.sock
+    static final String ENDPOINTS = System.getProperty("server.endpoints", "tcp:1313");
+    //the addresses of the admin console, only loopback addresses and unix domain sockets, empty to have no console
+    static final String ADMIN_ENDPOINTS = System.getProperty("server.adminEndpoints", "tcp:127.0.0.1:1314");
+    //the password the admin console asks for first, empty to let in whoever can reach it
+    static final String ADMIN_PASSWORD = System.getProperty("server.adminPassword", "");
+
+    //the number of event loops waiting on idle connections in selector mode
+    static final int EVENT_LOOPS = Integer.getInteger("server.eventLoops", Math.min(4, Runtime.getRuntime().availableProcessors()));
+    //the number of threads that serve commands in selector mode, a worker is held while the data of a file is received
+    static final int WORKER_THREADS = Integer.getInteger("server.workers", 4 * Runtime.getRuntime().availableProcessors());
+    //the number of threads that generate the keys of new users
+    static final int KEY_THREADS = Integer.getInteger("server.keyThreads", Runtime.getRuntime().availableProcessors());
+    //the number of threads that encrypt and decrypt files
+    static final int FILE_THREADS = Integer.getInteger("server.fileThreads", 2 * Runtime.getRuntime().availableProcessors());
+    //how many commands may wait for a worker before the server starts answering that it is busy
+    static final int WORKER_QUEUE = Integer.getInteger("server.workerQueue", 256);
+    //how many tasks of a single user may wait for a file thread, so one user cannot fill the whole queue
+    static final int USER_QUEUE = Integer.getInteger("server.userQueue", 64);
+    //how many connections may be open at the same time, in thread modes this is also the maximum number of threads
+    static final int MAX_CONNECTIONS = Integer.getInteger("server.maxConnections", 1000);
+    //how many connections the operating system may keep waiting to be accepted
+    static final int BACKLOG = Integer.getInteger("server.backlog", 50);
+    //how many requests of a single connection may be served at the same time, further requests are served one by one
+    static final int MAX_IN_FLIGHT = Integer.getInteger("server.maxInFlight", 16);
+    //how many commands a batch may carry
+    static final int MAX_BATCH = Integer.getInteger("server.maxBatch", 64);
+    //how many bytes of an upload the client may send ahead of what the server has stored
+    static final int UPLOAD_WINDOW = Integer.getInteger("server.uploadWindow", 256 * 1024);
+    //the largest window an upload is given however fast and far away the client is
+    static final int MAX_UPLOAD_WINDOW = Integer.getInteger("server.maxUploadWindow", 8 * 1024 * 1024);
+    //files larger than this many bytes are encrypted while they are received and decrypted while they are sent,
+    //instead of being held in memory whole
+    static final int STREAM_THRESHOLD = Integer.getInteger("server.streamThreshold", 1024 * 1024);
+    //encrypted files of at least this many bytes are memory-mapped when they are loaded, smaller ones are read
+    static final int MAP_THRESHOLD = Integer.getInteger("server.mapThreshold", 4 * 1024 * 1024);
+    //the number of threads that read and write the files of the transfers
+    static final int DISK_THREADS = Integer.getInteger("server.diskThreads", 4);
+    //how many windowed uploads may be open at once, each has a spool file open
+    static final int MAX_UPLOADS = Integer.getInteger("server.maxUploads", 256);
+    //how many windowed uploads a single user may have open at once
+    static final int MAX_USER_UPLOADS = Integer.getInteger("server.maxUserUploads", 8);
+    //megabytes the spool files of the open uploads may grow to together
+    static final int MAX_SPOOL = Integer.getInteger("server.maxSpool", 4096);
+    //seconds an upload that was broken off is kept so that it can be resumed
+    static final int UPLOAD_EXPIRE = Integer.getInteger("server.uploadExpire", 600);
+    //bytes per second all connections together may send, and as many receive, 0 for no limit
+    static final int RATE_LIMIT = Integer.getInteger("server.rateLimit", 0);
+    //bytes per second a single connection may send and receive, 0 for no limit
+    static final int CONNECTION_RATE_LIMIT = Integer.getInteger("server.connectionRateLimit", 0);
+    //bytes per second all connections of a user together may send and receive, 0 for no limit
+    static final int USER_RATE_LIMIT = Integer.getInteger("server.userRateLimit", 0);
+    //megabytes the data of files in transfer may take in memory, 0 for half of the heap
+    static final int MEMORY_BUDGET = Integer.getInteger("server.memoryBudget", 0);
+    //seconds a transfer waits for memory before it is refused
+    static final int MEMORY_WAIT = Integer.getInteger("server.memoryWait", 10);
+    //seconds a connection may wait between commands before it is closed, 0 to wait for ever
+    static final int IDLE_TIMEOUT = Integer.getInteger("server.idleTimeout", 300);
+    //seconds a client may take to send the rest of a command it has started
+    static final int HEADER_TIMEOUT = Integer.getInteger("server.headerTimeout", 30);
+    //seconds the upload of a file may go without receiving any data
+    static final int PAYLOAD_TIMEOUT = Integer.getInteger("server.payloadTimeout", 60);
+    //seconds a reply, like the data of a file that is downloaded, may go without the client taking any of it
+    static final int REPLY_TIMEOUT = Integer.getInteger("server.replyTimeout", 60);
+    //seconds the commands under way may take to finish when the server is stopped
+    static final int SHUTDOWN_TIMEOUT = Integer.getInteger("server.shutdownTimeout", 30);
+    //how often in seconds the metrics are printed, 0 to never print them
+    static final int METRICS_INTERVAL = Integer.getInteger("server.metricsInterval", 0);
+}
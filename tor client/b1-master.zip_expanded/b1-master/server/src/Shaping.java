@@ -0,0 +1,240 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Limits how fast data goes through the server, for all connections together, for every connection and for every user.
+ * Every limit has a token bucket for the data that is sent and one for the data that is received.
+ * The limits can be changed while the server runs, while there is none at all the streams pass the data straight on.
+ * A connection waits for its buckets on the thread that reads it or on its writer, so waiting never holds up a shared pool
+ */
+class Shaping implements ShapingMBean {
+    private static final int SLICE = 16 * 1024; //the most that is let through at once, so the buckets take turns
+
+    private static final AtomicLong globalRate = new AtomicLong(ServerConfig.RATE_LIMIT);
+    private static final AtomicLong connectionRate = new AtomicLong(ServerConfig.CONNECTION_RATE_LIMIT);
+    private static final AtomicLong userRate = new AtomicLong(ServerConfig.USER_RATE_LIMIT);
+    private static final Map<String, Long> userRates = new ConcurrentHashMap<>(); //users with a limit of their own
+    //the users that have a connection open, a user is forgotten once its last connection is closed
+    private static final Map<String, Buckets> users = new ConcurrentHashMap<>();
+    private static final Buckets global = new Buckets(globalRate::get);
+    private static volatile boolean active;
+
+    static {
+        update();
+    }
+
+    /**
+     * Makes the limits available through JMX
+     */
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Shaping(), new ObjectName("server:type=Shaping"));
+        } catch (JMException e) {
+            System.err.println("The bandwidth limits cannot be changed while running: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks if there is any limit at all
+     */
+    private static void update() {
+        active = globalRate.get() > 0 || connectionRate.get() > 0 || userRate.get() > 0
+                || userRates.values().stream().anyMatch(rate -> rate > 0);
+    }
+
+    private static long rateOf(String user) {
+        return userRates.getOrDefault(user, userRate.get());
+    }
+
+    @Override
+    public long getGlobalLimit() {
+        return globalRate.get();
+    }
+
+    @Override
+    public void setGlobalLimit(long bytesPerSecond) {
+        globalRate.set(bytesPerSecond);
+        update();
+    }
+
+    @Override
+    public long getConnectionLimit() {
+        return connectionRate.get();
+    }
+
+    @Override
+    public void setConnectionLimit(long bytesPerSecond) {
+        connectionRate.set(bytesPerSecond);
+        update();
+    }
+
+    @Override
+    public long getUserLimit() {
+        return userRate.get();
+    }
+
+    @Override
+    public void setUserLimit(long bytesPerSecond) {
+        userRate.set(bytesPerSecond);
+        update();
+    }
+
+    @Override
+    public void limitUser(String user, long bytesPerSecond) {
+        userRates.put(user.toLowerCase(), bytesPerSecond);
+        update();
+    }
+
+    @Override
+    public void clearUserLimit(String user) {
+        userRates.remove(user.toLowerCase());
+        update();
+    }
+
+    /**
+     * The buckets of a single limit
+     */
+    private static class Buckets {
+        final TokenBucket sending;
+        final TokenBucket receiving;
+        int connections; //the connections that count against the buckets of a user, guarded by the map
+
+        Buckets(LongSupplier rate) {
+            this.sending = new TokenBucket(rate);
+            this.receiving = new TokenBucket(rate);
+        }
+    }
+
+    /**
+     * The limits that apply to a connection, its own, the one of the user that uses it and the global one
+     */
+    static class Connection {
+        private final Buckets own = new Buckets(connectionRate::get);
+        private volatile Buckets user;
+        private String userKey; //guarded by this
+        private boolean closed; //guarded by this
+
+        /**
+         * Counts what the connection carries from now on against a user, the last user that has been authenticated on it.
+         * Only authenticated users get buckets, a client cannot make up names to fill the map or to use up the bandwidth of others
+         */
+        synchronized void setUser(String name) {
+            if (closed || name == null || name.isEmpty() || name.equalsIgnoreCase(userKey))
+                return;
+            String key = name.toLowerCase();
+            user = users.compute(key, (k, buckets) -> {
+                buckets = buckets != null ? buckets : new Buckets(() -> rateOf(k));
+                buckets.connections++;
+                return buckets;
+            });
+            release();
+            userKey = key;
+        }
+
+        /**
+         * Lets go of the user of a connection that has been closed
+         */
+        synchronized void close() {
+            closed = true;
+            release();
+            userKey = null;
+            user = null;
+        }
+
+        private void release() {
+            if (userKey != null)
+                users.computeIfPresent(userKey, (k, buckets) -> --buckets.connections > 0 ? buckets : null);
+        }
+
+        private void sending(int bytes) throws InterruptedIOException {
+            own.sending.acquire(bytes);
+            Buckets user = this.user;
+            if (user != null)
+                user.sending.acquire(bytes);
+            global.sending.acquire(bytes);
+        }
+
+        private void receiving(long bytes) throws InterruptedIOException {
+            own.receiving.acquire(bytes);
+            Buckets user = this.user;
+            if (user != null)
+                user.receiving.acquire(bytes);
+            global.receiving.acquire(bytes);
+        }
+
+        /**
+         * @return a stream that writes to the given one within the limits
+         */
+        OutputStream output(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    if (active)
+                        sending(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (!active) {
+                        out.write(b, off, len);
+                        return;
+                    }
+                    while (len > 0) {
+                        int slice = Math.min(len, SLICE);
+                        sending(slice);
+                        out.write(b, off, slice);
+                        off += slice;
+                        len -= slice;
+                    }
+                }
+            };
+        }
+
+        /**
+         * @return a stream that reads from the given one within the limits
+         */
+        InputStream input(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    if (b != -1 && active)
+                        receiving(1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (!active)
+                        return in.read(b, off, len);
+                    int read = in.read(b, off, Math.min(len, SLICE));
+                    if (read > 0)
+                        receiving(read);
+                    return read;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    if (!active)
+                        return in.skip(n);
+                    long skipped = in.skip(Math.min(n, SLICE));
+                    if (skipped > 0)
+                        receiving(skipped);
+                    return skipped;
+                }
+            };
+        }
+    }
+}
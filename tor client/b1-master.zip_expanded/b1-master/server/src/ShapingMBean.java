@@ -0,0 +1,28 @@
+/**
+ * The bandwidth limits of the server as they can be changed through JMX while the server runs (for example with jconsole).
+ * All limits are in bytes per second in each direction, 0 or less means there is no limit
+ */
+public interface ShapingMBean {
+
+    long getGlobalLimit();
+
+    void setGlobalLimit(long bytesPerSecond);
+
+    long getConnectionLimit();
+
+    void setConnectionLimit(long bytesPerSecond);
+
+    long getUserLimit();
+
+    void setUserLimit(long bytesPerSecond);
+
+    /**
+     * Gives a single user a limit of its own instead of the one every user has
+     */
+    void limitUser(String user, long bytesPerSecond);
+
+    /**
+     * Lets a user have the limit every user has again
+     */
+    void clearUserLimit(String user);
+}
@@ -0,0 +1,57 @@
+/**
+ * The round trip time and the throughput of a connection as seen by the uploads it carries.
+ * The window granted to an upload is sized from them, so a slow or distant client is not held back
+ * by a window that is too small and a local client does not get more than it can use
+ */
+class TransferStats {
+    private static final int MIN_WINDOW = 64 * 1024;
+    private static final double GAIN = 0.125; //how much a new sample moves the average, as for the smoothed round trip time of TCP
+
+    private double rttMillis = -1;
+    private double bytesPerSecond = -1;
+    private int window = ServerConfig.UPLOAD_WINDOW;
+
+    /**
+     * Records the time from granting a window until the first data that needed it arrived
+     */
+    synchronized void rttSample(long nanos) {
+        rttMillis = average(rttMillis, nanos / 1_000_000.0);
+        resize();
+    }
+
+    /**
+     * Records how fast data was stored between two acknowledgements
+     */
+    synchronized void throughputSample(long bytes, long nanos) {
+        if (nanos <= 0)
+            return;
+        bytesPerSecond = average(bytesPerSecond, bytes * 1_000_000_000.0 / nanos);
+        resize();
+    }
+
+    private static double average(double current, double sample) {
+        return current < 0 ? sample : current + GAIN * (sample - current);
+    }
+
+    /**
+     * Twice what the connection carries in a round trip, so the client never has to wait for an acknowledgement
+     */
+    private void resize() {
+        if (rttMillis < 0 || bytesPerSecond < 0)
+            return;
+        double bandwidthDelay = bytesPerSecond * rttMillis / 1000.0;
+        window = (int) Math.max(MIN_WINDOW, Math.min(ServerConfig.MAX_UPLOAD_WINDOW, 2 * bandwidthDelay));
+    }
+
+    /**
+     * @return the window the next grant should give
+     */
+    synchronized int window() {
+        return window;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("rtt %.0f ms, %.0f KB/s, window %d KB", rttMillis, bytesPerSecond / 1024, window / 1024);
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed number of threads with a bounded queue in front of them, work that does not fit is refused instead of piling up
+ */
+class WorkerPool implements Executor {
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param name    the name of the pool, used for its threads and its metrics
+     * @param threads the number of threads
+     * @param queue   how many tasks may wait for a thread
+     */
+    WorkerPool(String name, int threads, int queue) {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue), task -> {
+            Thread t = new Thread(task, name + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        Metrics.register(name + ".active", executor::getActiveCount);
+        Metrics.register(name + ".queued", () -> executor.getQueue().size());
+        Metrics.register(name + ".rejected", rejected::sum);
+    }
+
+    /**
+     * Runs a task if there is room for it
+     *
+     * @param task the task to run
+     * @return false if the pool is saturated and the task was refused
+     */
+    boolean trySubmit(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!trySubmit(task))
+            throw new RejectedExecutionException("Worker pool is saturated");
+    }
+}
@@ -1,5 +1,6 @@
 import java.io.*;
 import java.net.Socket;
+import java.util.Arrays;
 
 public class Client {
     private static final String WORK_FOLDER = "C:\\temp\\client\\";
@@ -21,6 +22,25 @@ public class Client {
         if (userInput == null || serverOutput == null || serverInput == null)
             System.exit(1);
         final ClientState state = new ClientState();
+        //old servers only understand the text format, -Dclient.protocol=text talks to them
+        final boolean binary = !"text".equalsIgnoreCase(System.getProperty("client.protocol", "binary"));
+        try {
+            state.format = WireFormat.connect(serverInput, serverOutput, binary);
+        } catch (IOException e) {
+            System.err.println("Error while connecting to server: " + e.getMessage());
+            System.exit(1);
+        }
+        //-Dclient.windowed=false sends files in one piece instead of within the windows the server grants
+        state.windowed = Boolean.parseBoolean(System.getProperty("client.windowed", "true"));
+        //-Dclient.stripes=N carries every single file over N connections at once
+        int stripes = Integer.getInteger("client.stripes", 1);
+        if (stripes > 1)
+            state.striped = new StripedTransfer(stripes, binary, () -> {
+                Socket stripe = connectToServer();
+                if (stripe == null)
+                    throw new IOException("Could not connect to server");
+                return stripe;
+            });
         final Thread reader = new Thread(() -> readData(serverInput, userOutput, state));
         try {
             //start the reader
@@ -35,6 +55,8 @@ public class Client {
                 }
             }
         } finally {
+            if (state.striped != null)
+                state.striped.close();
             if (!sock.isClosed())
                 sock.close();
         }
@@ -44,8 +66,10 @@ public class Client {
     private static void readData(DataInputStream serverInput, PrintStream userOutput, ClientState state) {
         while (state.isWorking()) {
             try {
-                String data = serverInput.readLine();
-                parseResponse(userOutput, serverInput, data, state);
+                Command cmd = state.format.read(serverInput);
+                if (cmd == null)
+                    throw new EOFException("Connection closed");
+                parseResponse(userOutput, serverInput, cmd, state);
             } catch (Exception e) {
                 userOutput.println("SERVER ERROR: " + e.getMessage());
                 state.stopWorking();
@@ -64,7 +88,7 @@ public class Client {
 
     private static DataInputStream createServerInput(Socket sock) {
         try {
-            return new DataInputStream(sock.getInputStream());
+            return new DataInputStream(new BufferedInputStream(sock.getInputStream()));
         } catch (Exception e) {
             System.err.println("Error while creating server input stream");
             return null;
@@ -133,19 +157,15 @@ public class Client {
                 }
                 break;
             case Sending:
-                if (state.file == null) {
-                    os.println("Enter file to send:");
-                }
+                os.println("Enter file to send, separate several files with commas:");
                 break;
             case Receiving:
-                if (state.file == null) {
-                    os.println("Enter file to retrieve:");
-                }
+                os.println("Enter file to retrieve, separate several files with commas:");
                 break;
         }
     }
 
-    private static State parseUserInput(String input, ClientState state, PrintStream userOutput, PrintStream serverOutput) {
+    private static State parseUserInput(String input, ClientState state, PrintStream userOutput, PrintStream serverOutput) throws IOException {
         if (state.current == State.Waiting) {
             if (state.hasTimedOut()) {
                 return State.Idle;
@@ -218,145 +238,303 @@ public class Client {
             }
             return State.Registering;
         } else if (state.current == State.Sending) {
-            File toSend = new File(WORK_FOLDER, input);
-            if (!toSend.exists()) {
-                userOutput.println("File " + input + " does not exist");
-                return State.Idle;
-            }
-            byte[] fileData;
-            try (FileInputStream fis = new FileInputStream(toSend)) {
-                fileData = fis.readAllBytes();
-            } catch (Exception e) {
-                userOutput.println("Error while reading file " + input + " : " + e.getMessage());
-                return State.Idle;
+            String[] files = splitFiles(input);
+            byte[][] fileData = new byte[files.length][];
+            for (int idx = 0; idx < files.length; idx++) {
+                File toSend = new File(WORK_FOLDER, files[idx]);
+                if (!toSend.exists()) {
+                    userOutput.println("File " + files[idx] + " does not exist");
+                    return State.Idle;
+                }
+                try (FileInputStream fis = new FileInputStream(toSend)) {
+                    fileData[idx] = fis.readAllBytes();
+                } catch (Exception e) {
+                    userOutput.println("Error while reading file " + files[idx] + " : " + e.getMessage());
+                    return State.Idle;
+                }
             }
-            state.file = input;
-            sendFile(serverOutput, fileData, state);
-            return State.Waiting;
+            //the reply is printed whenever it comes, so the next file can be sent right away
+            if (files.length == 1 && state.striped != null)
+                sendStriped(userOutput, files[0], fileData[0], state);
+            else if (files.length == 1 && state.windowed)
+                sendWindowed(serverOutput, userOutput, files[0], fileData[0], state);
+            else if (files.length == 1)
+                sendFile(serverOutput, files[0], fileData[0], state);
+            else
+                sendBatch(serverOutput, Command.SEND, files, fileData, state);
+            return State.Idle;
         } else if (state.current == State.Receiving) {
-            if (StringUtils.isNullOrBlank(input)) {
+            String[] files = splitFiles(input);
+            if (files.length == 0) {
                 return State.Idle;
             }
-            state.file = input;
-            retrieveFile(serverOutput, state);
+            if (files.length == 1 && state.striped != null)
+                retrieveStriped(userOutput, files[0], state);
+            else if (files.length == 1)
+                retrieveFile(serverOutput, files[0], state);
+            else
+                sendBatch(serverOutput, Command.RECEIVE, files, null, state);
+            return State.Idle;
         }
         return state.current;
     }
 
-    private static void parseResponse(PrintStream userOutput, DataInputStream serverInput, String data, ClientState state) {
-        Command cmd = Command.fromMessage(data);
-        if (cmd == null) {
-            userOutput.println("Invalid response received:" + data);
-        } else {
-            switch (cmd.getType()) {
-                case Command.REGISTER:
-                    if (cmd.getParameter(Command.ERROR) != null) {
-                        userOutput.println("ERROR:" + cmd.getParameter(Command.ERROR));
-                        userOutput.println("Press enter key to continue");
-                        state.clearCredentials();
-                        state.current = State.Idle;
-                    } else if (cmd.getParameter(Command.SUCCESS) != null) {
-                        userOutput.println("User successfully registered");
-                        userOutput.println("Press enter key to continue");
-                        state.clearCredentials();
-                        state.current = State.Idle;
-                    }
-                    break;
-                case Command.LOGIN:
-                    if (cmd.getParameter(Command.ERROR) != null) {
-                        userOutput.println("ERROR:" + cmd.getParameter(Command.ERROR));
-                        userOutput.println("Press enter key to continue");
-                        state.clearCredentials();
-                        state.current = State.Idle;
-                    } else if (cmd.getParameter(Command.SUCCESS) != null) {
-                        userOutput.println("User successfully logged in");
-                        userOutput.println("Press enter key to continue");
-                        state.userLoggedIn();
-                        state.current = State.Idle;
+    private static void parseResponse(PrintStream userOutput, DataInputStream serverInput, Command cmd, ClientState state) throws IOException {
+        ClientState.Request request = state.finishRequest(cmd);
+        String file = request != null ? request.nextFile() : null;
+        switch (cmd.getType()) {
+            case Command.REGISTER:
+                if (cmd.getParameter(Command.ERROR) != null) {
+                    userOutput.println("ERROR:" + cmd.getParameter(Command.ERROR));
+                    userOutput.println("Press enter key to continue");
+                    state.clearCredentials();
+                    state.current = State.Idle;
+                } else if (cmd.getParameter(Command.SUCCESS) != null) {
+                    userOutput.println("User successfully registered");
+                    userOutput.println("Press enter key to continue");
+                    state.clearCredentials();
+                    state.current = State.Idle;
+                }
+                break;
+            case Command.LOGIN:
+                if (cmd.getParameter(Command.ERROR) != null) {
+                    userOutput.println("ERROR:" + cmd.getParameter(Command.ERROR));
+                    userOutput.println("Press enter key to continue");
+                    state.clearCredentials();
+                    state.current = State.Idle;
+                } else if (cmd.getParameter(Command.SUCCESS) != null) {
+                    userOutput.println("User successfully logged in");
+                    userOutput.println("Press enter key to continue");
+                    state.userLoggedIn();
+                    state.current = State.Idle;
+                }
+                break;
+            case Command.SEND:
+                if (cmd.getParameter(Command.ERROR) != null) {
+                    userOutput.println("ERROR:" + cmd.getParameter(Command.ERROR));
+                    userOutput.println("Press enter key to continue");
+                    state.current = State.Idle;
+                } else if (cmd.getParameter(Command.SUCCESS) != null) {
+                    userOutput.println("File " + file + " sent successfully");
+                    userOutput.println("Press enter key to continue");
+                    state.current = State.Idle;
+                }
+                break;
+            case Command.RECEIVE:
+                if (cmd.getParameter(Command.ERROR) != null) {
+                    userOutput.println("ERROR:" + cmd.getParameter(Command.ERROR));
+                    userOutput.println("Press enter key to continue");
+                    state.current = State.Idle;
+                } else if (cmd.getParameter(Command.SUCCESS) != null) {
+                    long size = cmd.getLongParameter(Command.SUCCESS);
+                    if (file == null) { //nobody asked for this file, skip it to reach the next reply
+                        StreamUtils.skipFully(serverInput, size);
+                        break;
                     }
-                    break;
-                case Command.SEND:
-                    if (cmd.getParameter(Command.ERROR) != null) {
-                        userOutput.println("ERROR:" + cmd.getParameter(Command.ERROR));
+                    try {
+                        receiveFile(serverInput, new File(WORK_FOLDER, file), size);
+                        userOutput.println("File " + file + " received successfully");
                         userOutput.println("Press enter key to continue");
                         state.current = State.Idle;
-                    } else if (cmd.getParameter(Command.SUCCESS) != null) {
-                        userOutput.println("File " + state.file + " sent successfully");
+                    } catch (EOFException e) {
+                        userOutput.println("File " + file + " was cut off, the server could not send it whole");
                         userOutput.println("Press enter key to continue");
                         state.current = State.Idle;
-                        state.file = null;
-                    }
-                    break;
-                case Command.RECEIVE:
-                    if (cmd.getParameter(Command.ERROR) != null) {
-                        userOutput.println("ERROR:" + cmd.getParameter(Command.ERROR));
+                    } catch (Exception e) {
+                        userOutput.println("Error while saving file " + file);
                         userOutput.println("Press enter key to continue");
                         state.current = State.Idle;
-                    } else if (cmd.getParameter(Command.SUCCESS) != null) {
-                        try {
-                            long size = Long.parseLong(cmd.getParameter(Command.SUCCESS));
-                            byte[] fileData = StreamUtils.readData(serverInput, size);
-                            try (FileOutputStream fos = new FileOutputStream(new File(WORK_FOLDER, state.file))) {
-                                fos.write(fileData);
-                            }
-                            userOutput.println("File " + state.file + " received successfully");
-                            userOutput.println("Press enter key to continue");
-                            state.current = State.Idle;
-                            state.file = null;
-                        } catch (Exception e) {
-                            userOutput.println("Error while saving file " + state.file);
-                            userOutput.println("Press enter key to continue");
-                            state.current = State.Idle;
-                            state.file = null;
-                        }
                     }
+                }
+                break;
+            case Command.UPLOAD:
+            case Command.CHUNK:
+                if (request == null || request.upload == null)
                     break;
-            }
+                //the thread that sends the upload reports how it ends
+                if (cmd.getParameter(Command.ERROR) != null)
+                    request.upload.failed(cmd.getParameter(Command.ERROR));
+                else if (cmd.getParameter(Command.SUCCESS) != null)
+                    request.upload.finished();
+                else
+                    request.upload.granted(cmd);
+                break;
+            case Command.BATCH:
+                if (cmd.getParameter(Command.ERROR) != null) {
+                    userOutput.println("ERROR:" + cmd.getParameter(Command.ERROR));
+                } else {
+                    userOutput.println("Batch of " + cmd.getParameter(Command.SUCCESS) + " files done");
+                }
+                userOutput.println("Press enter key to continue");
+                state.current = State.Idle;
+                break;
+            case Command.BUSY:
+                userOutput.println("ERROR:" + cmd.getParameter(Command.ERROR));
+                userOutput.println("Press enter key to continue");
+                if (request != null && request.upload != null)
+                    request.upload.failed(cmd.getParameter(Command.ERROR));
+                if (cmd.getRequestId() == Command.NO_REQUEST) //the whole connection has been refused
+                    state.clearRequests();
+                state.current = State.Idle;
+                break;
         }
     }
 
     //region messages to the server
-    private static void sendLogIn(PrintStream os, ClientState state) {
-        state.commandStarted();
+    private static void sendLogIn(PrintStream os, ClientState state) throws IOException {
+        long requestId = state.startRequest(Command.LOGIN);
         Command cmd =
                 new Command(Command.LOGIN)
                         .addParameter(Command.USERNAME, state.userName)
                         .addParameter(Command.PASSWORD, state.password);
-        os.println(cmd.toMessage());
+        state.format.write(cmd, requestId, 0, os);
     }
 
-    private static void sendRegister(PrintStream os, ClientState state) {
-        state.commandStarted();
+    private static void sendRegister(PrintStream os, ClientState state) throws IOException {
+        long requestId = state.startRequest(Command.REGISTER);
         Command cmd =
                 new Command(Command.REGISTER)
                         .addParameter(Command.USERNAME, state.userName)
                         .addParameter(Command.PASSWORD, state.password);
-        os.println(cmd.toMessage());
+        state.format.write(cmd, requestId, 0, os);
     }
 
-    private static void sendFile(PrintStream os, byte[] fileData, ClientState state) {
-        state.commandStarted();
+    private static void sendFile(PrintStream os, String file, byte[] fileData, ClientState state) throws IOException {
+        long requestId = state.startRequest(Command.SEND, file);
         Command cmd = new Command(Command.SEND)
                 .addParameter(Command.USERNAME, state.userName)
                 .addParameter(Command.PASSWORD, state.password)
-                .addParameter(Command.LENGTH, String.valueOf(fileData.length))
-                .addParameter(Command.FILE, state.file);
-        os.println(cmd.toMessage());
-        try {
-            os.write(fileData);
-        } catch (Exception ignored) {
+                .addParameter(Command.LENGTH, fileData.length)
+                .addParameter(Command.FILE, file);
+        synchronized (os) { //uploads may be writing chunks at the same time
+            state.format.write(cmd, requestId, fileData.length, os);
+            try {
+                os.write(fileData);
+            } catch (Exception ignored) {
 
+            }
         }
 
     }
 
-    private static void retrieveFile(PrintStream os, ClientState state) {
-        state.commandStarted();
+    /**
+     * Writes a file to disk while it is read from the server, a file that ends early is deleted
+     *
+     * @param length the length the server announced
+     * @throws EOFException if the connection ended before the whole file arrived
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static void receiveFile(DataInputStream serverInput, File target, long length) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+            StreamUtils.transfer(serverInput, fos, length);
+        } catch (EOFException e) {
+            target.delete();
+            throw e;
+        }
+    }
+
+    private static void retrieveFile(PrintStream os, String file, ClientState state) throws IOException {
+        long requestId = state.startRequest(Command.RECEIVE, file);
         Command cmd = new Command(Command.RECEIVE)
                 .addParameter(Command.USERNAME, state.userName)
                 .addParameter(Command.PASSWORD, state.password)
-                .addParameter(Command.FILE, state.file);
-        os.println(cmd.toMessage());
+                .addParameter(Command.FILE, file);
+        state.format.write(cmd, requestId, 0, os);
+    }
+
+    /**
+     * Sends several files or asks for several files in a single batch, so they cost one round trip instead of one each
+     *
+     * @param type     whether the files are sent or retrieved
+     * @param files    the names of the files
+     * @param fileData the data of the files that are sent, null when they are retrieved
+     */
+    private static void sendBatch(PrintStream os, String type, String[] files, byte[][] fileData, ClientState state) throws IOException {
+        long requestId = state.startRequest(Command.BATCH, files);
+        //the whole batch goes out in as few packets as possible
+        BufferedOutputStream batch = new BufferedOutputStream(os, 8 * 1024);
+        Command cmd = new Command(Command.BATCH)
+                .addParameter(Command.USERNAME, state.userName)
+                .addParameter(Command.PASSWORD, state.password)
+                .addParameter(Command.COUNT, files.length);
+        synchronized (os) { //uploads may be writing chunks at the same time
+            state.format.write(cmd, requestId, 0, batch);
+            for (int idx = 0; idx < files.length; idx++) {
+                Command part = new Command(type).addParameter(Command.FILE, files[idx]);
+                if (fileData == null) {
+                    state.format.write(part, 0, batch);
+                } else {
+                    part.addParameter(Command.LENGTH, fileData[idx].length);
+                    state.format.write(part, fileData[idx].length, batch);
+                    batch.write(fileData[idx]);
+                }
+            }
+            batch.flush();
+        }
+    }
+
+    /**
+     * Sends a file within the windows the server grants, the result is printed whenever the upload is done
+     */
+    private static void sendWindowed(PrintStream os, PrintStream userOutput, String file, byte[] fileData, ClientState state) {
+        String userName = state.userName;
+        String password = state.password;
+        WindowedUpload upload = new WindowedUpload(file, fileData);
+        new Thread(() -> {
+            try {
+                upload.send(os, state, userName, password);
+                userOutput.println("File " + file + " sent successfully (" + upload + ")");
+            } catch (IOException e) {
+                userOutput.println("ERROR:" + e.getMessage() + " (" + upload.getAcknowledged() + " bytes were stored)");
+            }
+            userOutput.println("Press enter key to continue");
+        }).start();
+    }
+
+    /**
+     * Sends a file over the striped connections, the result is printed whenever the transfer is done
+     */
+    private static void sendStriped(PrintStream userOutput, String file, byte[] fileData, ClientState state) {
+        String userName = state.userName;
+        String password = state.password;
+        new Thread(() -> {
+            try {
+                state.striped.send(userName, password, file, fileData);
+                userOutput.println("File " + file + " sent successfully");
+            } catch (IOException e) {
+                userOutput.println("ERROR:" + e.getMessage());
+            }
+            userOutput.println("Press enter key to continue");
+        }).start();
+    }
+
+    /**
+     * Retrieves a file over the striped connections, the result is printed whenever the transfer is done
+     */
+    private static void retrieveStriped(PrintStream userOutput, String file, ClientState state) {
+        String userName = state.userName;
+        String password = state.password;
+        new Thread(() -> {
+            try {
+                byte[] fileData = state.striped.receive(userName, password, file);
+                try (FileOutputStream fos = new FileOutputStream(new File(WORK_FOLDER, file))) {
+                    fos.write(fileData);
+                }
+                userOutput.println("File " + file + " received successfully");
+            } catch (IOException e) {
+                userOutput.println("ERROR:" + e.getMessage());
+            }
+            userOutput.println("Press enter key to continue");
+        }).start();
+    }
+
+    private static String[] splitFiles(String input) {
+        if (StringUtils.isNullOrBlank(input))
+            return new String[0];
+        return Arrays.stream(input.split(","))
+                .map(String::trim)
+                .filter(file -> !file.isEmpty())
+                .toArray(String[]::new);
     }
 
     //endregion
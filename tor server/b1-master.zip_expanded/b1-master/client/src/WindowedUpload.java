@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Sends a file in chunks that stay within the window the server has granted.
+ * The server acknowledges what it has stored and grants the next window as it goes,
+ * the replies are handed over by the thread that reads the connection.
+ * The server sizes the window from the round trip time and throughput it measures, the chunks are sized from the window.
+ * If the server gives up on the upload it is resumed from what the server has acknowledged, a few times at most
+ */
+class WindowedUpload {
+    private static final int MIN_CHUNK = 16 * 1024;
+    private static final int MAX_CHUNK = 1024 * 1024;
+    private static final long WAIT_MILLIS = 1000L;
+    private static final int MAX_RESUMES = 3;
+
+    final String file;
+    private final byte[] data;
+    private long token = -1; //known once the server has started the upload
+    private long start = -1; //where the server wants the data to start, known once the upload has been granted
+    private long acknowledged;
+    private long granted;
+    private String error;
+    private boolean done;
+    private int chunkSize = MIN_CHUNK; //the largest chunk sent so far
+    private long startedAt;
+    private long finishedAt;
+
+    WindowedUpload(String file, byte[] data) {
+        this.file = file;
+        this.data = data;
+    }
+
+    /**
+     * Sends the file and waits until the server has saved it, runs on a thread of its own
+     *
+     * @param os    the stream of the server, chunks are written while holding its lock so they do not mix with other commands
+     * @param state the state of the client, the upload is registered in it so its replies are handed over
+     * @throws IOException why the upload failed
+     */
+    void send(PrintStream os, ClientState state, String userName, String password) throws IOException {
+        startedAt = System.nanoTime();
+        for (int resumes = 0; ; resumes++) {
+            try {
+                sendFromStart(os, state, userName, password);
+                return;
+            } catch (IOException e) {
+                if (!resume(resumes, state))
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Starts the upload, or resumes it once it has a token, and sends the data from where the server wants it
+     */
+    private void sendFromStart(PrintStream os, ClientState state, String userName, String password) throws IOException {
+        long requestId = state.startUpload(this);
+        Command cmd = new Command(Command.UPLOAD)
+                .addParameter(Command.USERNAME, userName)
+                .addParameter(Command.PASSWORD, password)
+                .addParameter(Command.FILE, file)
+                .addParameter(Command.TOTAL, data.length);
+        synchronized (this) {
+            if (token >= 0)
+                cmd.addParameter(Command.TRANSFER, token);
+        }
+        state.format.write(cmd, requestId, 0, os);
+        long sent;
+        synchronized (this) {
+            while (start == -1)
+                await(state);
+            sent = start;
+        }
+        do { //an empty chunk still has to be sent when there is nothing left, it tells the server to save the file
+            long limit;
+            int size;
+            synchronized (this) {
+                while (granted <= sent && sent < data.length)
+                    await(state);
+                limit = granted;
+                //an eighth of the window is a quarter of what is on the way in a round trip, so acknowledgements keep coming
+                size = (int) Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, (granted - acknowledged) / 8));
+                chunkSize = Math.max(chunkSize, size);
+            }
+            int length = (int) Math.min(size, Math.min(limit, data.length) - sent);
+            Command chunk = new Command(Command.CHUNK)
+                    .addParameter(Command.TRANSFER, token)
+                    .addParameter(Command.OFFSET, sent)
+                    .addParameter(Command.LENGTH, length);
+            synchronized (os) {
+                state.format.write(chunk, requestId, length, os);
+                os.write(data, (int) sent, length);
+            }
+            sent += length;
+        } while (sent < data.length);
+        synchronized (this) {
+            while (!done)
+                await(state);
+        }
+    }
+
+    /**
+     * Gets ready to resume the upload after the server refused a chunk or could not save the file.
+     * The server keeps what it has acknowledged, so the data goes on from there.
+     * An upload the server never started or a connection that is gone cannot be resumed
+     *
+     * @return true if the upload should be resumed
+     */
+    private synchronized boolean resume(int resumes, ClientState state) {
+        if (error == null || token < 0 || resumes >= MAX_RESUMES || !state.isWorking())
+            return false;
+        error = null;
+        start = -1;
+        granted = 0;
+        return true;
+    }
+
+    private void await(ClientState state) throws IOException {
+        if (error != null)
+            throw new IOException(error);
+        if (!state.isWorking())
+            throw new IOException("Connection closed");
+        try {
+            wait(WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Upload interrupted");
+        }
+        if (error != null)
+            throw new IOException(error);
+    }
+
+    /**
+     * Takes a grant or an acknowledgement of the server
+     */
+    synchronized void granted(Command reply) {
+        if (reply.getParameter(Command.TRANSFER) != null)
+            token = reply.getLongParameter(Command.TRANSFER);
+        acknowledged = reply.getLongParameter(Command.OFFSET);
+        if (start == -1)
+            start = acknowledged;
+        granted = Math.max(granted, reply.getLongParameter(Command.WINDOW));
+        notifyAll();
+    }
+
+    synchronized void failed(String error) {
+        this.error = error;
+        notifyAll();
+    }
+
+    synchronized void finished() {
+        acknowledged = data.length;
+        finishedAt = System.nanoTime();
+        done = true;
+        notifyAll();
+    }
+
+    /**
+     * @return how many bytes the server has stored for sure
+     */
+    synchronized long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * @return how fast the file went and how large the chunks grew
+     */
+    @Override
+    public synchronized String toString() {
+        long nanos = (done ? finishedAt : System.nanoTime()) - startedAt;
+        double kbPerSecond = nanos <= 0 ? 0 : acknowledged * 1_000_000_000.0 / nanos / 1024;
+        return String.format("%.0f KB/s, chunks of up to %d KB", kbPerSecond, chunkSize / 1024);
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A length prefixed binary format, so a command is read with a couple of bulk reads instead of byte by byte.
+ * Frames are parsed in place, the command returned by {@link #read} is reused by the next read.
+ * <p>
+ * The client starts the connection with the {@link #PREFACE} followed by the highest version it speaks,
+ * the server answers with the preface and the version that will be used.
+ * After that every command is a frame:
+ * <pre>
+ * type (1 byte) | header length (2 bytes) | fields (header length bytes) | payload length (8 bytes)
+ * </pre>
+ * followed by the payload. Every field is its key (1 byte), its type (1 byte) and its value,
+ * a long is 8 bytes and a string is its length (2 bytes) and its UTF-8 bytes
+ */
+public class BinaryWireFormat implements WireFormat {
+    //a text command never starts with a zero byte, so this tells the two formats apart
+    static final byte[] PREFACE = {0, 'T', 'O', 'R'};
+    static final int HANDSHAKE_LENGTH = PREFACE.length + 1;
+    static final int VERSION = 1;
+
+    private static final String[] TYPES = {Command.LOGIN, Command.REGISTER, Command.SEND, Command.RECEIVE, Command.BUSY, Command.BATCH, Command.UPLOAD, Command.CHUNK};
+    private static final int FRAME_START = 3;
+    private static final int FRAME_END = 8;
+    private static final byte FIELD_STRING = 0;
+    private static final byte FIELD_LONG = 1;
+
+    private static final Map<Command, byte[]> constants = new ConcurrentHashMap<>();
+
+    private final Command command = new Command();
+    private final ValueCache cache = new ValueCache(StandardCharsets.UTF_8);
+    private byte[] header = new byte[256];
+    private ByteBuffer output = ByteBuffer.allocate(256);
+
+    static WireFormat acceptHandshake(DataInputStream in, OutputStream out) throws IOException {
+        byte[] handshake = new byte[HANDSHAKE_LENGTH - 1];
+        in.readFully(handshake); //the first byte of the preface has already been read
+        if (!Arrays.equals(handshake, 0, PREFACE.length - 1, PREFACE, 1, PREFACE.length))
+            throw new IOException("Invalid handshake");
+        int version = Math.min(handshake[handshake.length - 1], VERSION);
+        if (version < 1)
+            throw new IOException("Unsupported protocol version " + handshake[handshake.length - 1]);
+        out.write(handshake(version));
+        return new BinaryWireFormat();
+    }
+
+    static WireFormat startHandshake(DataInputStream in, OutputStream out) throws IOException {
+        out.write(handshake(VERSION));
+        byte[] answer = new byte[HANDSHAKE_LENGTH];
+        in.readFully(answer);
+        if (!Arrays.equals(answer, 0, PREFACE.length, PREFACE, 0, PREFACE.length))
+            throw new IOException("Server does not support the binary protocol");
+        if (answer[PREFACE.length] != VERSION)
+            throw new IOException("Unsupported protocol version " + answer[PREFACE.length]);
+        return new BinaryWireFormat();
+    }
+
+    private static byte[] handshake(int version) {
+        byte[] handshake = Arrays.copyOf(PREFACE, HANDSHAKE_LENGTH);
+        handshake[PREFACE.length] = (byte) version;
+        return handshake;
+    }
+
+    @Override
+    public Command read(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1)
+            return null;
+        int headerLength = in.readUnsignedShort();
+        if (header.length < headerLength + FRAME_END)
+            header = new byte[headerLength + FRAME_END];
+        in.readFully(header, 0, headerLength + FRAME_END); //the fields and the payload length in one read
+        if (type < 1 || type > TYPES.length) { //a frame this version does not know, skip it whole
+            long payloadLength = readLong(header, headerLength);
+            if (payloadLength < 0)
+                throw new IOException("Malformed frame");
+            StreamUtils.skipFully(in, payloadLength);
+            command.reset("Frame " + type);
+            return command;
+        }
+        command.reset(TYPES[type - 1]);
+        int position = 0;
+        while (position < headerLength) {
+            //every length comes from the peer, a field that does not fit in the header must not be read past it
+            checkField(position, 2, headerLength);
+            int slot = Command.slotOf(header[position++]);
+            byte fieldType = header[position++];
+            if (fieldType == FIELD_LONG) {
+                checkField(position, 8, headerLength);
+                if (slot != -1)
+                    command.setNumber(slot, readLong(header, position));
+                position += 8;
+            } else {
+                checkField(position, 2, headerLength);
+                int length = (header[position] & 0xff) << 8 | header[position + 1] & 0xff;
+                position += 2;
+                checkField(position, length, headerLength);
+                if (slot != -1)
+                    command.setValue(slot, cache.get(slot, header, position, length));
+                position += length;
+            }
+        }
+        return command;
+    }
+
+    private static void checkField(int position, int length, int headerLength) throws IOException {
+        if (length > headerLength - position)
+            throw new IOException("Malformed frame");
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int idx = offset; idx < offset + 8; idx++) {
+            value = value << 8 | bytes[idx] & 0xff;
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized void write(Command cmd, long requestId, long payloadLength, OutputStream out) throws IOException {
+        output.clear();
+        if (cmd.isConstant()) {
+            byte[] encoded = constants.get(cmd);
+            if (encoded == null) {
+                encodeFields(cmd);
+                encoded = Arrays.copyOf(output.array(), output.position());
+                constants.put(cmd, encoded);
+                output.clear();
+            }
+            ensure(encoded.length);
+            output.put(encoded);
+        } else {
+            encodeFields(cmd);
+        }
+        if (requestId != Command.NO_REQUEST)
+            putLong(Command.slotOf(Command.REQUEST_ID), requestId);
+        int headerLength = output.position() - FRAME_START;
+        if (headerLength > 0xffff)
+            throw new IOException("Command too long");
+        ensure(FRAME_END);
+        output.putLong(payloadLength);
+        output.putShort(1, (short) headerLength);
+        out.write(output.array(), 0, output.position());
+    }
+
+    /**
+     * Encodes the type and the parameters of a command into the reusable output buffer,
+     * the header length is filled in once the whole frame has been encoded
+     */
+    private void encodeFields(Command cmd) throws IOException {
+        int type = typeOf(cmd.getType());
+        if (type == 0)
+            throw new IOException("Command " + cmd.getType() + " cannot be sent in binary format");
+        output.put((byte) type);
+        output.putShort((short) 0);
+        for (int slot = 0; slot < Command.SLOTS; slot++) {
+            if (!cmd.has(slot))
+                continue;
+            if (cmd.isNumber(slot) || slot == Command.slotOf(Command.LENGTH) || slot == Command.slotOf(Command.COUNT))
+                putLong(slot, cmd.isNumber(slot) ? cmd.number(slot) : Long.parseLong(cmd.value(slot)));
+            else
+                putString(slot, String.valueOf(cmd.value(slot)));
+        }
+    }
+
+    private void putLong(int slot, long value) {
+        ensure(10);
+        output.put((byte) Command.keyOf(slot));
+        output.put(FIELD_LONG);
+        output.putLong(value);
+    }
+
+    private void putString(int slot, String value) throws IOException {
+        if (value.length() > 0xffff) //no need to encode it to know, a char is at least one byte
+            throw new IOException("Parameter too long");
+        ensure(4 + value.length());
+        output.put((byte) Command.keyOf(slot));
+        output.put(FIELD_STRING);
+        for (int idx = 0; idx < value.length(); idx++) {
+            if (value.charAt(idx) >= 0x80) { //not plain ASCII, let the charset encode it
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > 0xffff)
+                    throw new IOException("Parameter too long");
+                ensure(2 + bytes.length);
+                output.putShort((short) bytes.length);
+                output.put(bytes);
+                return;
+            }
+        }
+        output.putShort((short) value.length());
+        for (int idx = 0; idx < value.length(); idx++) {
+            output.put((byte) value.charAt(idx));
+        }
+    }
+
+    private static int typeOf(String type) {
+        for (int idx = 0; idx < TYPES.length; idx++) {
+            if (TYPES[idx].equals(type))
+                return idx + 1;
+        }
+        return 0;
+    }
+
+    private void ensure(int more) {
+        if (output.remaining() < more) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + more));
+            output.flip();
+            bigger.put(output);
+            output = bigger;
+        }
+    }
+
+    @Override
+    public boolean hasCommand(ByteBuffer buffer) {
+        if (buffer.remaining() < FRAME_START)
+            return false;
+        int headerLength = buffer.getShort(buffer.position() + 1) & 0xffff;
+        return buffer.remaining() >= FRAME_START + headerLength + FRAME_END;
+    }
+}
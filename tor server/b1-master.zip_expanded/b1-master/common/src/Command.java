@@ -1,15 +1,19 @@
-import java.util.HashMap;
-import java.util.Map;
-
 public class Command {
 
-    private static final String SEPARATOR = "-=%&%=-";
-    private static final String VALUE_SEPARATOR = "%=%";
+    static final String SEPARATOR = "-=%&%=-";
+    static final String VALUE_SEPARATOR = "%=%";
 
     public static final String SEND = "Send";
     public static final String RECEIVE = "Start Receive";
     public static final String LOGIN = "Login";
     public static final String REGISTER = "Register";
+    public static final String BUSY = "Busy";
+    //logs in once and carries the number of send and receive commands that follow it,
+    //every one of them is answered with the request id of the batch and the batch reply comes last
+    public static final String BATCH = "Batch";
+    //an upload whose data is sent in chunks, the client may only send as far as the window the server has granted
+    public static final String UPLOAD = "Upload";
+    public static final String CHUNK = "Chunk";
 
     public static final String USERNAME = "U";
     public static final String PASSWORD = "P";
@@ -17,48 +21,204 @@ public class Command {
     public static final String ERROR = "E";
     public static final String SUCCESS = "S";
     public static final String FILE = "F";
+    public static final String REQUEST_ID = "R";
+    //the number of commands of a batch or the number of stripes of a striped transfer
+    public static final String COUNT = "N";
+    //a striped transfer carries one file over several connections at once, every connection carries one stripe of it
+    public static final String TRANSFER = "X";
+    public static final String STRIPE = "I";
+    public static final String OFFSET = "O";
+    public static final String TOTAL = "T";
+    //the offset up to which the client may send the data of an upload
+    public static final String WINDOW = "W";
+
+    //the request id of commands that do not have one, their replies come back in the order the commands were sent
+    static final long NO_REQUEST = -1;
+
+    //parameters are kept in a slot per key, the keys are single upper case letters
+    static final int SLOTS = 26;
 
     private String type;
-    private HashMap<String, String> params = new HashMap<>();
+    private final String[] values = new String[SLOTS];
+    private final long[] numbers = new long[SLOTS];
+    private int present; //a bit for every slot that has a value
+    private int numeric; //a bit for every slot whose value was given as a number
+    private boolean constant;
 
     Command(String type) {
         this.type = type;
     }
 
+    /**
+     * Creates an empty command that a decoder will fill in with {@link #reset(String)}
+     */
+    Command() {
+    }
+
+    /**
+     * Clears the command so it can be reused for a new one
+     *
+     * @param type the type of the new command
+     */
+    void reset(String type) {
+        checkMutable();
+        this.type = type;
+        for (int slot = 0; present != 0; slot++, present >>>= 1) {
+            values[slot] = null;
+        }
+        numeric = 0;
+    }
+
     public Command addParameter(String name, String value) {
-        params.put(name, value);
+        int slot = slotOf(name);
+        setValue(slot, value);
+        return this;
+    }
+
+    /**
+     * Adds a number parameter without turning it into a string
+     */
+    Command addParameter(String name, long value) {
+        int slot = slotOf(name);
+        setNumber(slot, value);
         return this;
     }
 
     public String getParameter(String name) {
-        return params.get(name);
+        return value(slotOf(name));
+    }
+
+    /**
+     * @return the value of a number parameter
+     * @throws NumberFormatException if the parameter is missing or not a number
+     */
+    long getLongParameter(String name) {
+        int slot = slotOf(name);
+        if ((numeric & (1 << slot)) != 0)
+            return numbers[slot];
+        return Long.parseLong(values[slot]);
     }
 
     public String getType() {
         return type;
     }
 
+    /**
+     * @return the id the client gave to this request or {@link #NO_REQUEST}
+     */
+    long getRequestId() {
+        return has(slotOf(REQUEST_ID)) ? getLongParameter(REQUEST_ID) : NO_REQUEST;
+    }
+
+    /**
+     * Makes a copy of this command that cannot be changed, so formats may encode it once and reuse the bytes
+     *
+     * @return the constant copy
+     */
+    Command constant() {
+        Command copy = copy();
+        copy.constant = true;
+        return copy;
+    }
+
+    boolean isConstant() {
+        return constant;
+    }
+
+    /**
+     * @return a copy of this command that is not affected when a decoder reuses this one
+     */
+    Command copy() {
+        Command copy = new Command(type);
+        System.arraycopy(values, 0, copy.values, 0, SLOTS);
+        System.arraycopy(numbers, 0, copy.numbers, 0, SLOTS);
+        copy.present = present;
+        copy.numeric = numeric;
+        return copy;
+    }
+
+    //region slot access for the wire formats
+    static int slotOf(String name) {
+        if (name.length() != 1)
+            throw new IllegalArgumentException("Invalid parameter name " + name);
+        return slotOf(name.charAt(0));
+    }
+
+    /**
+     * @return the slot of a key or -1 if it is not a valid key
+     */
+    static int slotOf(int key) {
+        return key >= 'A' && key < 'A' + SLOTS ? key - 'A' : -1;
+    }
+
+    static char keyOf(int slot) {
+        return (char) ('A' + slot);
+    }
+
+    boolean has(int slot) {
+        return (present & (1 << slot)) != 0;
+    }
+
+    boolean isNumber(int slot) {
+        return (numeric & (1 << slot)) != 0;
+    }
+
+    long number(int slot) {
+        return numbers[slot];
+    }
+
+    String value(int slot) {
+        if (!has(slot))
+            return null;
+        if (values[slot] == null) //a number that has not been needed as a string yet
+            values[slot] = String.valueOf(numbers[slot]);
+        return values[slot];
+    }
+
+    void setValue(int slot, String value) {
+        checkMutable();
+        values[slot] = value;
+        present |= 1 << slot;
+        numeric &= ~(1 << slot);
+    }
+
+    void setNumber(int slot, long value) {
+        checkMutable();
+        values[slot] = null;
+        numbers[slot] = value;
+        present |= 1 << slot;
+        numeric |= 1 << slot;
+    }
+
+    private void checkMutable() {
+        if (constant)
+            throw new IllegalStateException("Constant commands cannot be changed");
+    }
+    //endregion
+
     public String toMessage() {
         StringBuilder builder = new StringBuilder(type);
-        for (Map.Entry<String, String> entry : params.entrySet()) {
-            builder.append(SEPARATOR).append(entry.getKey()).append(VALUE_SEPARATOR).append(entry.getValue());
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (has(slot))
+                builder.append(SEPARATOR).append(keyOf(slot)).append(VALUE_SEPARATOR).append(value(slot));
         }
         return builder.toString();
     }
 
-    public static Command fromMessage( String message) {
+    public static Command fromMessage(String message) {
         try {
-            String[] parts = message.split(SEPARATOR);
-            if (parts.length < 1)
-                return null;
-            Command reply = new Command(parts[0]);
-            for (int idx = 1; idx < parts.length; idx++) {
-                String part = parts[idx];
-                if (!part.contains(VALUE_SEPARATOR))
+            int end = message.indexOf(SEPARATOR);
+            Command reply = new Command(end == -1 ? message : message.substring(0, end));
+            while (end != -1) {
+                int start = end + SEPARATOR.length();
+                end = message.indexOf(SEPARATOR, start);
+                int partEnd = end == -1 ? message.length() : end;
+                int valueStart = message.indexOf(VALUE_SEPARATOR, start);
+                if (valueStart == -1 || valueStart >= partEnd)
                     continue;
-                String key = part.substring(0, part.indexOf(VALUE_SEPARATOR));
-                String value = part.substring(part.indexOf(VALUE_SEPARATOR) + VALUE_SEPARATOR.length());
-                reply.addParameter(key, value);
+                int slot = valueStart - start == 1 ? slotOf(message.charAt(start)) : -1;
+                if (slot != -1)
+                    reply.setValue(slot, message.substring(valueStart + VALUE_SEPARATOR.length(), partEnd));
             }
             return reply;
         } catch (Exception ignored) {
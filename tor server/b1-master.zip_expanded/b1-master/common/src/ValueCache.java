@@ -0,0 +1,36 @@
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Turns the bytes of parameter values into strings, reusing the string of the previous value of the same slot
+ * when the bytes have not changed. Clients send their user name and password with every command,
+ * so after the first command decoding them allocates nothing
+ */
+class ValueCache {
+    private final Charset charset;
+    private final byte[][] bytes = new byte[Command.SLOTS][];
+    private final int[] lengths = new int[Command.SLOTS];
+    private final String[] strings = new String[Command.SLOTS];
+
+    ValueCache(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * @param slot   the slot of the parameter
+     * @param buffer the buffer holding the value
+     * @param offset where the value starts
+     * @param length the length of the value
+     * @return the value as a string
+     */
+    String get(int slot, byte[] buffer, int offset, int length) {
+        byte[] last = bytes[slot];
+        if (last != null && lengths[slot] == length && Arrays.equals(last, 0, length, buffer, offset, offset + length))
+            return strings[slot];
+        if (last == null || last.length < length)
+            last = bytes[slot] = new byte[Math.max(length, 32)];
+        System.arraycopy(buffer, offset, last, 0, length);
+        lengths[slot] = length;
+        return strings[slot] = new String(buffer, offset, length, charset);
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Accepts connections on one or more channels and serves each one with blocking streams on a thread of its own
+ */
+class BlockingServer implements Listener {
+    private final List<ServerSocketChannel> serverChannels;
+    private final CommandHandlers handlers;
+    private final Executor executor;
+    //every connection has a thread of its own, so limiting the connections also bounds the threads
+    private final ConnectionLimiter limiter = new ConnectionLimiter(ServerConfig.MAX_CONNECTIONS);
+
+    /**
+     * @param serverChannels the channels to accept connections from
+     * @param handlers       serve the commands
+     * @param mode           whether platform or virtual threads should be used
+     */
+    BlockingServer(List<ServerSocketChannel> serverChannels, CommandHandlers handlers, ServerConfig.Mode mode) throws Exception {
+        this.serverChannels = serverChannels;
+        this.handlers = handlers;
+        this.executor = mode == ServerConfig.Mode.VIRTUAL ? virtualThreadExecutor() : task -> new Thread(task).start();
+    }
+
+    /**
+     * Accepts connections on every channel, the first one is served by the calling thread
+     */
+    @Override
+    public void run() {
+        for (int idx = 1; idx < serverChannels.size(); idx++) {
+            ServerSocketChannel serverChannel = serverChannels.get(idx);
+            Thread t = new Thread(() -> accept(serverChannel), "accept-" + idx);
+            t.setDaemon(true);
+            t.start();
+        }
+        accept(serverChannels.get(0));
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel clientChannel = serverChannel.accept();
+                //tcp connections are served through their sockets, unix domain sockets have none and are served through the channel
+                boolean tcp = clientChannel.getLocalAddress() instanceof InetSocketAddress;
+                Closeable client = tcp ? clientChannel.socket() : clientChannel;
+                if (!limiter.tryAcquire()) {
+                    System.out.println("Refused connection : " + client);
+                    ClientConnection.refuse(clientChannel);
+                    continue;
+                }
+                System.out.println("Accepted connection : " + client);
+                try {
+                    ClientConnection connection = tcp ? new ClientConnection(clientChannel.socket(), handlers) : new ClientConnection(clientChannel, handlers);
+                    executor.execute(() -> serve(connection, client));
+                } catch (Exception e) {
+                    limiter.release();
+                    client.close();
+                    throw e;
+                }
+            } catch (Exception e) {
+                if (serverChannel.isOpen())
+                    System.err.println("Error in connection attempt.");
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections, the connections that are open are left alone
+     */
+    @Override
+    public void close() throws IOException {
+        for (ServerSocketChannel serverChannel : serverChannels)
+            Endpoints.close(serverChannel);
+    }
+
+    private void serve(ClientConnection connection, Closeable client) {
+        try {
+            connection.run();
+        } finally {
+            limiter.release();
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for every task.
+     * It is looked up at runtime so the server still builds and runs on JDKs without virtual threads
+     *
+     * @return the executor
+     * @throws Exception if the JDK does not support virtual threads
+     */
+    private static Executor virtualThreadExecutor() throws Exception {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new Exception("Virtual threads require Java 21 or newer");
+        }
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client connection that is served by an {@link EventLoop}.
+ * The channel is always non blocking, while the connection waits for a command it is parked on the selector of its loop,
+ * once a whole command line has arrived the commands are served on the worker pool through blocking streams.
+ * Only the wait for a command costs no thread. The data of a file that follows a command is read by the worker,
+ * which waits for it as long as the client takes to send it, so as many slow uploads as there are workers
+ * keep every other client waiting for a worker. Those are bounded by the payload timeout of {@link ConnectionReaper},
+ * and large files are better sent as windowed uploads, whose chunks are small so a worker waits for one chunk at a time
+ */
+class ChannelConnection {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_COMMAND_SIZE = 64 * 1024;
+    private static final long WAIT_MILLIS = 1000L;
+    private static final int DIRECT_THRESHOLD = 8 * 1024; //smaller reads and writes are not worth borrowing a buffer for
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final ConnectionLimiter limiter;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final ClientConnection client;
+    private final ConnectionActivity activity = new ConnectionActivity(this::close);
+    private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE).flip(); //kept ready for reading
+    private SelectionKey key;
+    //the blocking reads and writes wait on selectors of their own, they are opened the first time they are needed, guarded by this
+    private Selector readSelector;
+    private Selector writeSelector;
+    private boolean selectorsClosed; //guarded by this
+
+    ChannelConnection(SocketChannel channel, EventLoop loop, ConnectionLimiter limiter, CommandHandlers handlers) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.limiter = limiter;
+        channel.configureBlocking(false);
+        //unix domain sockets have no Socket, the client connection only needs it for the old file transfers
+        Socket socket = channel.getLocalAddress() instanceof InetSocketAddress ? channel.socket() : null;
+        this.client = new ClientConnection(socket, new ChannelInput(), new ChannelOutput(), activity, handlers);
+        ConnectionReaper.watch(activity);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * Reads whatever the channel has available without blocking
+     *
+     * @return false if the client has closed the connection
+     */
+    boolean fill() throws IOException {
+        input.compact();
+        if (!input.hasRemaining()) { //the buffer is full without a whole command in it
+            if (input.capacity() >= MAX_COMMAND_SIZE) {
+                input.flip();
+                throw new IOException("Command too long");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(input.capacity() * 2);
+            input.flip();
+            bigger.put(input);
+            input = bigger;
+        }
+        int read = channel.read(input);
+        input.flip();
+        activity.received(read);
+        return read != -1;
+    }
+
+    /**
+     * @return true if a whole command has been received and can be served without waiting for the client
+     */
+    boolean hasCommand() {
+        return client.hasCommand(input);
+    }
+
+    /**
+     * Serves all the commands that have been received and hands the connection back to its loop.
+     * Runs on the worker pool, the data that follows a command is waited for on the worker
+     */
+    void serve() {
+        try {
+            while (hasCommand()) {
+                if (!client.handleCommand()) {
+                    client.whenDrained(this::close);
+                    return;
+                }
+            }
+            loop.resume(this);
+        } catch (Exception ex) {
+            System.out.println("Error:" + ex.getMessage());
+            close();
+        }
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        limiter.release();
+        ConnectionReaper.forget(activity);
+        client.closed();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        closeSelectors();
+    }
+
+    /**
+     * Tells the client that the server is too busy to serve its command and closes the connection.
+     * The command may be followed by the data of a file, so the connection cannot be used for further commands
+     */
+    void refuse() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        limiter.release();
+        ConnectionReaper.forget(activity);
+        try (channel) {
+            client.refuse();
+        } catch (IOException ignored) {
+        }
+        closeSelectors();
+        client.closed();
+    }
+
+    /**
+     * Blocks the current thread until the channel is ready for the given operation
+     */
+    private void await(int operation) throws IOException {
+        if (!channel.isOpen())
+            throw new ClosedChannelException();
+        Selector selector = waitSelector(operation);
+        try {
+            SelectionKey waitKey = channel.register(selector, operation);
+            try {
+                selector.select(WAIT_MILLIS);
+            } finally {
+                waitKey.cancel();
+                selector.selectNow(); //deregister the channel, so it can be registered again next time
+            }
+        } catch (ClosedSelectorException e) { //the connection has been closed meanwhile
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * @return the selector to wait for the operation on, only one thread at a time reads and only one writes
+     */
+    private synchronized Selector waitSelector(int operation) throws IOException {
+        if (selectorsClosed)
+            throw new ClosedChannelException();
+        if (operation == SelectionKey.OP_READ) {
+            if (readSelector == null)
+                readSelector = Selector.open();
+            return readSelector;
+        }
+        if (writeSelector == null)
+            writeSelector = Selector.open();
+        return writeSelector;
+    }
+
+    private synchronized void closeSelectors() {
+        selectorsClosed = true;
+        for (Selector selector : new Selector[]{readSelector, writeSelector}) {
+            if (selector == null)
+                continue;
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * The stream the commands are read from, returns the buffered data first and then waits on the channel
+     */
+    private class ChannelInput extends InputStream {
+        @Override
+        public int read() throws IOException {
+            if (!input.hasRemaining()) {
+                input.clear();
+                int read;
+                while ((read = channel.read(input)) == 0)
+                    await(SelectionKey.OP_READ);
+                input.flip();
+                if (read == -1)
+                    return -1;
+                activity.received(read);
+            }
+            return input.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (input.hasRemaining()) {
+                int count = Math.min(len, input.remaining());
+                input.get(b, off, count);
+                return count;
+            }
+            if (len < DIRECT_THRESHOLD)
+                return received(readFrom(ByteBuffer.wrap(b, off, len)));
+            //large reads, like the data of a file, go through a direct buffer the JDK does not have to copy again
+            try (BufferPool.Lease lease = BufferPool.direct(Math.min(len, BufferPool.BUFFER_SIZE))) {
+                ByteBuffer buffer = lease.buffer;
+                buffer.limit(Math.min(len, buffer.capacity()));
+                int read = readFrom(buffer);
+                if (read > 0)
+                    buffer.flip().get(b, off, read);
+                return received(read);
+            }
+        }
+
+        private int readFrom(ByteBuffer buffer) throws IOException {
+            int read;
+            while ((read = channel.read(buffer)) == 0)
+                await(SelectionKey.OP_READ);
+            return read;
+        }
+
+        private int received(int read) {
+            activity.received(read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return input.remaining();
+        }
+
+        /**
+         * Marks the position in the buffered data, only data that has already been received can be marked
+         */
+        @Override
+        public void mark(int readLimit) {
+            input.mark();
+        }
+
+        @Override
+        public void reset() {
+            input.reset();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+    }
+
+    /**
+     * The stream the replies are written to, waits on the channel whenever the socket buffer is full
+     */
+    private class ChannelOutput extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (len < DIRECT_THRESHOLD) {
+                writeOut(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+            //large writes, like the data of a file, go through a direct buffer the JDK does not have to copy again
+            try (BufferPool.Lease lease = BufferPool.direct(Math.min(len, BufferPool.BUFFER_SIZE))) {
+                ByteBuffer buffer = lease.buffer;
+                while (len > 0) {
+                    int count = Math.min(len, buffer.capacity());
+                    buffer.clear();
+                    buffer.put(b, off, count).flip();
+                    writeOut(buffer);
+                    off += count;
+                    len -= count;
+                }
+            }
+        }
+
+        private void writeOut(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0)
+                    await(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+}
@@ -1,118 +1,654 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class ClientConnection implements Runnable {
-    private final DataManager dataManager;
+    private static final long REFUSE_GRACE_MILLIS = 200L;
+    private static final int MAX_REFUSING = 256; //refused clients that are waited for, the others are closed right away
+    private static final AtomicInteger refusing = new AtomicInteger();
+    private static final ScheduledExecutorService refusals = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread t = new Thread(task, "refuse");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final AtomicInteger writerCount = new AtomicInteger();
+    //the replies of requests that are answered whenever they are done are written here, not on the pool that served them,
+    //so a client that takes its data slowly holds up its own writer and no thread of a pool.
+    //a connection has at most one writer at a time, which ends once it has nothing left to write
+    private static final ExecutorService writers = Executors.newCachedThreadPool(task -> {
+        Thread t = new Thread(task, "replies-" + writerCount.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    });
+    private final CommandHandlers handlers;
     private Socket clientSocket;
+    private final DataInputStream in;
+    private final PrintStream out;
+    private final PrintStream direct; //the same stream without the bandwidth limits, for the busy reply
+    private final Shaping.Connection shaping = new Shaping.Connection();
+    private final ConnectionActivity activity;
+    private WireFormat format; //picked from the first data the client sends
+    private int inFlight; //requests that are answered whenever they are done, guarded by this
+    private Runnable drained; //runs once the requests in flight have been answered, guarded by this
+    private final Queue<Runnable> pending = new ArrayDeque<>(); //replies waiting for the writer, in order
+    private boolean writing; //the writer of the connection is running, guarded by pending
 
 
-    ClientConnection(Socket client, DataManager dataManager) {
+    ClientConnection(Socket client, CommandHandlers handlers) throws IOException {
+        this(client, null, client.getOutputStream(), new ConnectionActivity(client), handlers);
+    }
+
+    /**
+     * Creates a connection over a channel in blocking mode, for unix domain sockets which have no {@link Socket}
+     */
+    ClientConnection(SocketChannel channel, CommandHandlers handlers) throws IOException {
+        this(channel, new ConnectionActivity(channel), handlers);
+    }
+
+    private ClientConnection(SocketChannel channel, ConnectionActivity activity, CommandHandlers handlers) throws IOException {
+        this(null, new BufferedInputStream(new ActivityInputStream(new ChannelInputStream(channel), activity)),
+                new ChannelOutputStream(channel), activity, handlers);
+    }
+
+    /**
+     * Creates a connection that talks to the client through the given streams
+     *
+     * @param client   the socket of the client
+     * @param input    the stream the commands of the client are read from, null to read from the socket
+     * @param output   the stream the replies are written to
+     * @param activity keeps track of the progress of the connection, input from the socket is reported to it
+     * @param handlers serve the commands
+     */
+    ClientConnection(Socket client, InputStream input, OutputStream output, ConnectionActivity activity, CommandHandlers handlers) throws IOException {
         this.clientSocket = client;
-        this.dataManager = dataManager;
+        this.handlers = handlers;
+        this.activity = activity;
+        this.in = new DataInputStream(input != null ? shaping.input(input)
+                : new BufferedInputStream(shaping.input(new ActivityInputStream(client.getInputStream(), activity))));
+        OutputStream counted = new ActivityOutputStream(output, activity);
+        this.out = new PrintStream(shaping.output(counted));
+        this.direct = new PrintStream(counted);
+        if (client != null)
+            activity.setRemote(String.valueOf(client.getRemoteSocketAddress()));
+    }
+
+    /**
+     * Tells a client that has just connected that the server cannot serve it right now and closes the connection.
+     * The answer is written in the format of whatever the client has sent, a client that has sent nothing yet
+     * is looked at again a little later, off the thread that accepts. If it has still sent nothing it could speak
+     * either format and is not answered at all
+     *
+     * @param channel the channel of the client, a failure to answer it is ignored
+     */
+    static void refuse(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            if (!refuseNow(channel) && refusing.incrementAndGet() <= MAX_REFUSING) {
+                refusals.schedule(() -> {
+                    refusing.decrementAndGet();
+                    closeRefused(channel);
+                }, REFUSE_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+        } catch (IOException ignored) {
+        }
+        closeRefused(channel);
+    }
+
+    private static void closeRefused(SocketChannel channel) {
+        try (channel) {
+            refuseNow(channel);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return false if the client has sent nothing yet, it has not been answered then
+     */
+    private static boolean refuseNow(SocketChannel channel) throws IOException {
+        if (!channel.isOpen())
+            return true;
+        ByteBuffer received = ByteBuffer.allocate(BinaryWireFormat.HANDSHAKE_LENGTH);
+        channel.read(received);
+        received.flip();
+        if (!WireFormat.canAccept(received))
+            return received.hasRemaining(); //a handshake that has only partly arrived is not waited for either
+        ByteArrayOutputStream answer = new ByteArrayOutputStream(); //the handshake of a binary client, then the reply
+        WireFormat format = WireFormat.accept(new DataInputStream(new ByteArrayInputStream(received.array(), 0, received.limit())), answer);
+        format.write(Reply.BUSY.command, Command.NO_REQUEST, 0, answer);
+        channel.write(ByteBuffer.wrap(answer.toByteArray())); //small enough for the socket buffer of a new connection
+        return true;
+    }
+
+    /**
+     * Tells the client that the server cannot serve its command right now
+     */
+    void refuse() throws IOException {
+        reply(Reply.BUSY, Command.NO_REQUEST, direct); //this is written by an event loop, which must not wait for bandwidth
+    }
+
+    /**
+     * Checks if the next step of the connection can be done with the data received so far
+     *
+     * @param buffered the data received so far, ready for reading
+     * @return true if {@link #handleCommand()} would not have to wait for the client
+     */
+    boolean hasCommand(ByteBuffer buffered) {
+        return format == null ? WireFormat.canAccept(buffered) : format.hasCommand(buffered);
     }
 
     @Override
     public void run() {
+        ConnectionReaper.watch(activity);
         try {
-            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-            PrintStream out = new PrintStream(clientSocket.getOutputStream());
-            String message;
-            while ((message = in.readLine()) != null) {
-                Command cmd = Command.fromMessage(message);
-                if (cmd == null)
-                    continue;
-                switch (cmd.getType()) {
-                    case Command.LOGIN:
-                        doLogin(cmd.getParameter(Command.USERNAME), cmd.getParameter(Command.PASSWORD), out);
-                        break;
-                    case Command.REGISTER:
-                        doRegister(cmd.getParameter(Command.USERNAME), cmd.getParameter(Command.PASSWORD), out);
-                        break;
-                    case Command.SEND:
-                        doStartReceivingFile(cmd.getParameter(Command.USERNAME)
-                                , cmd.getParameter(Command.PASSWORD)
-                                , cmd.getParameter(Command.FILE)
-                                , Long.parseLong(cmd.getParameter(Command.LENGTH))
-                                , out, in);
-                        break;
-                    case Command.RECEIVE:
-                        doStartSendingFile(cmd.getParameter(Command.USERNAME)
-                                , cmd.getParameter(Command.PASSWORD)
-                                , cmd.getParameter(Command.FILE)
-                                , out);
-                        break;
-                    default:
-                        System.out.println("Incorrect command received.");
-                        break;
-                }
-            }
+            while (handleCommand()) ;
+            //the client may only have closed its side, so let it have the replies it is still waiting for
+            CountDownLatch latch = new CountDownLatch(1);
+            whenDrained(latch::countDown);
+            latch.await();
         } catch (IOException ex) {
             System.out.println("Error:" + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ConnectionReaper.forget(activity);
+            closed();
         }
     }
 
-    private void doRegister(String username, String password, PrintStream out) {
-        if (StringUtils.isNullOrBlank(username) || StringUtils.isNullOrBlank(password)) {
-            Command cmd = new Command(Command.REGISTER).addParameter(Command.ERROR, "Invalid user name or password");
-            out.println(cmd.toMessage());
-            return;
+    /**
+     * Lets go of what the connection holds once it has been closed
+     */
+    void closed() {
+        shaping.close();
+    }
+
+    /**
+     * Runs an action once every request in flight has been answered, right away if there are none
+     *
+     * @param action the action to run
+     */
+    void whenDrained(Runnable action) {
+        synchronized (this) {
+            if (inFlight > 0) {
+                drained = action;
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Reads a single command from the client and hands it to its handler.
+     * A command with a request id is answered with the same id whenever its handler is done,
+     * so the client can send its next commands without waiting and the replies may come back in any order.
+     * A command without one is answered before the next command is read, as old clients expect
+     *
+     * @return false if the client has closed the connection
+     */
+    boolean handleCommand() throws IOException {
+        if (format == null) {
+            format = WireFormat.accept(in, out);
+            return format != null;
+        }
+        Command cmd = format.read(in);
+        if (cmd == null)
+            return false;
+        activity.enter(ConnectionActivity.Phase.PROCESSING);
+        String username = cmd.getParameter(Command.USERNAME);
+        String type = cmd.getType();
+        activity.started(type);
+        long requestId = cmd.getRequestId();
+        if (Shutdown.isDraining()) { //the data that may follow is not read, the connection is closed once its requests are answered
+            reply(Reply.SHUTTING_DOWN, requestId);
+            activity.enter(ConnectionActivity.Phase.IDLE);
+            return false;
         }
+        CommandHandler handler = handlers.get(type);
+        if (handler == null) {
+            System.out.println("Incorrect command received.");
+            activity.enter(ConnectionActivity.Phase.IDLE);
+            return true;
+        }
+        //a connection that already has too many requests in flight waits for this one,
+        //which stops it from reading further commands until it catches up
+        boolean async = requestId != Command.NO_REQUEST && tryStartRequest();
+        Exchange exchange = new Exchange(requestId);
+        CompletableFuture<Reply> reply;
         try {
-            dataManager.registerUser(username, password);
-            Command cmd = new Command(Command.REGISTER).addParameter(Command.SUCCESS, "");
-            out.println(cmd.toMessage());
-        } catch (Exception e) {
-            Command cmd = new Command(Command.REGISTER).addParameter(Command.ERROR, e.getMessage());
-            out.println(cmd.toMessage());
+            reply = handler.handle(cmd, exchange);
+        } catch (RejectedExecutionException e) {
+            reply = CompletableFuture.completedFuture(Reply.BUSY); //only this request is refused, the connection can go on
+        } catch (IOException | RuntimeException e) {
+            exchange.release();
+            if (async)
+                finishRequest();
+            throw e;
+        }
+        if (async) {
+            reply.whenComplete((r, error) -> writeLater(() -> {
+                try {
+                    reply(error == null ? authenticated(r, username) : Reply.failure(type, error), requestId);
+                } catch (IOException e) {
+                    System.out.println("Error:" + e.getMessage());
+                } finally {
+                    exchange.release();
+                    finishRequest();
+                }
+            }));
+        } else {
+            try {
+                reply(authenticated(await(type, reply), username), requestId);
+            } finally {
+                exchange.release();
+            }
         }
+        activity.enter(ConnectionActivity.Phase.IDLE);
+        return true;
     }
 
-    private void doLogin(String username, String password, PrintStream out) {
-        if (StringUtils.isNullOrBlank(username) || StringUtils.isNullOrBlank(password)) {
-            Command cmd = new Command(Command.LOGIN).addParameter(Command.ERROR, "Invalid user name or password");
-            out.println(cmd.toMessage());
-            return;
+    private static Reply await(String type, CompletableFuture<Reply> reply) throws IOException {
+        try {
+            return reply.get();
+        } catch (ExecutionException e) {
+            return Reply.failure(type, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while serving a command");
         }
-        if (dataManager.isValid(username, password)) {
-            Command cmd = new Command(Command.LOGIN).addParameter(Command.SUCCESS, "");
-            out.println(cmd.toMessage());
-        } else {
-            Command cmd = new Command(Command.LOGIN).addParameter(Command.ERROR, "Invalid user name or password");
-            out.println(cmd.toMessage());
+    }
+
+    /**
+     * Remembers the user of a command that has succeeded as the user of the connection,
+     * from then on the connection counts against the bandwidth of that user
+     *
+     * @return the reply
+     */
+    private Reply authenticated(Reply reply, String username) {
+        if (reply != null && username != null && reply.command.getParameter(Command.ERROR) == null) {
+            activity.authenticated(username);
+            shaping.setUser(username);
         }
+        return reply;
     }
 
-    private void doStartReceivingFile(String username, String password, String fileName, long length, PrintStream out, DataInputStream in) {
-        if (!dataManager.isValid(username, password)) {
-            Command cmd = new Command(Command.SEND).addParameter(Command.ERROR, "Invalid user name or password");
-            out.println(cmd.toMessage());
-            return;
+    private synchronized boolean tryStartRequest() {
+        if (inFlight >= ServerConfig.MAX_IN_FLIGHT)
+            return false;
+        inFlight++;
+        activity.requestStarted();
+        return true;
+    }
+
+    private void finishRequest() {
+        activity.requestFinished();
+        Runnable action;
+        synchronized (this) {
+            if (--inFlight > 0 || drained == null)
+                return;
+            action = drained;
+            drained = null;
         }
-        String error = dataManager.saveFile(username, fileName, length, in);
-        if (error == null) {
-            Command cmd = new Command(Command.SEND).addParameter(Command.SUCCESS, "");
-            out.println(cmd.toMessage());
-        } else {
-            Command cmd = new Command(Command.SEND).addParameter(Command.ERROR, error);
-            out.println(cmd.toMessage());
+        action.run();
+    }
+
+    /**
+     * Hands a write to the writer of the connection, the writes are done one after the other in the order they were handed over
+     */
+    private void writeLater(Runnable write) {
+        synchronized (pending) {
+            pending.add(write);
+            if (writing)
+                return;
+            writing = true;
         }
+        writers.execute(this::writePending);
+    }
+
+    private void writePending() {
+        while (true) {
+            Runnable write;
+            synchronized (pending) {
+                write = pending.poll();
+                if (write == null) {
+                    writing = false;
+                    return;
+                }
+            }
+            write.run();
+        }
+    }
+
+    /**
+     * Writes a reply to the client in the format the client uses, the data of a file that follows it is written along
+     *
+     * @param reply     the reply, nothing is written if it is null
+     * @param requestId the id of the request that is answered or {@link Command#NO_REQUEST}
+     */
+    private void reply(Reply reply, long requestId) throws IOException {
+        reply(reply, requestId, out);
     }
 
-    private void doStartSendingFile(String username, String password, String filename, PrintStream out) {
-        if (!dataManager.isValid(username, password)) {
-            Command cmd = new Command(Command.RECEIVE).addParameter(Command.ERROR, "Invalid user name or password");
-            out.println(cmd.toMessage());
+    private void reply(Reply reply, long requestId, PrintStream target) throws IOException {
+        if (reply == null)
             return;
+        synchronized (out) { //replies of requests served at the same time must not be mixed up
+            activity.replyStarted();
+            try {
+                (format != null ? format : new TextWireFormat()).write(reply.command, requestId, reply.payloadLength(), target);
+                reply.writePayload(new CheckedOutputStream(target));
+            } catch (IOException e) {
+                activity.close(); //the client cannot tell where the data that was cut off ends, so the connection cannot go on
+                throw e;
+            } finally {
+                activity.replyFinished();
+            }
         }
-        try {
-            byte[] data = dataManager.loadFile(username, filename);
-            Command cmd = new Command(Command.RECEIVE).addParameter(Command.SUCCESS, String.valueOf(data.length));
-            out.println(cmd.toMessage());
-            out.write(data);
-        } catch (Exception e) {
-            Command cmd = new Command(Command.RECEIVE).addParameter(Command.ERROR, e.getMessage());
-            out.println(cmd.toMessage());
+    }
+
+    /**
+     * What the handler of a single request sees of the connection
+     */
+    private class Exchange implements CommandHandler.Exchange {
+        private final long requestId;
+        private final List<AutoCloseable> held = new ArrayList<>(); //reservations and whatever else the reply needs, guarded by this
+
+        Exchange(long requestId) {
+            this.requestId = requestId;
+        }
+
+        @Override
+        public byte[] readPayload(long length) throws IOException {
+            try {
+                reserve(length);
+            } catch (RejectedExecutionException e) {
+                skipPayload(length); //the next command comes after the data
+                throw e;
+            }
+            activity.enter(ConnectionActivity.Phase.PAYLOAD);
+            byte[] payload = StreamUtils.readData(in, length); //load all file data
+            activity.enter(ConnectionActivity.Phase.PROCESSING);
+            return payload;
+        }
+
+        @Override
+        public InputStream streamPayload(long length) {
+            activity.enter(ConnectionActivity.Phase.PAYLOAD);
+            return new PayloadInputStream(length);
+        }
+
+        @Override
+        public void skipPayload(long length) throws IOException {
+            activity.enter(ConnectionActivity.Phase.PAYLOAD);
+            StreamUtils.skipFully(in, length);
+            activity.enter(ConnectionActivity.Phase.PROCESSING);
+        }
+
+        @Override
+        public void reserve(long bytes) throws IOException {
+            hold(MemoryBudget.reserve(bytes));
+        }
+
+        @Override
+        public synchronized void hold(AutoCloseable resource) {
+            held.add(resource);
+        }
+
+        /**
+         * Gives back the memory of the request and closes what it held, once it has been answered
+         */
+        synchronized void release() {
+            for (AutoCloseable resource : held) {
+                try {
+                    resource.close();
+                } catch (Exception e) {
+                    System.out.println("Error:" + e.getMessage());
+                }
+            }
+            held.clear();
+        }
+
+        @Override
+        public Command readCommand() throws IOException {
+            activity.enter(ConnectionActivity.Phase.HEADER); //the rest of the command is still on its way
+            Command cmd = format.read(in);
+            activity.enter(ConnectionActivity.Phase.PROCESSING);
+            return cmd;
+        }
+
+        @Override
+        public CompletableFuture<Reply> supply(Executor executor, Callable<Reply> work) {
+            return CompletableFuture.supplyAsync(() -> CommandHandlers.call(work), executor);
+        }
+
+        @Override
+        public TransferStats stats() {
+            return activity.getTransferStats();
+        }
+
+        @Override
+        public CompletableFuture<Void> reply(Reply reply) {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            writeLater(() -> {
+                try {
+                    ClientConnection.this.reply(reply, requestId);
+                    written.complete(null);
+                } catch (IOException e) {
+                    written.completeExceptionally(e);
+                }
+            });
+            return written;
+        }
+    }
+
+    /**
+     * The data that follows a command, read straight from the connection.
+     * Closing it skips the rest of the data, so the next command can be read
+     */
+    private class PayloadInputStream extends InputStream {
+        private long remaining;
+
+        PayloadInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1)
+                throw new EOFException("Connection closed in the middle of a file");
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (remaining < 0)
+                return;
+            StreamUtils.skipFully(in, remaining);
+            remaining = -1;
+            activity.enter(ConnectionActivity.Phase.PROCESSING);
+        }
+    }
+
+    /**
+     * Reports everything read from the socket to the activity of the connection
+     */
+    private static class ActivityInputStream extends FilterInputStream {
+        private final ConnectionActivity activity;
+
+        ActivityInputStream(InputStream in, ConnectionActivity activity) {
+            super(in);
+            this.activity = activity;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            activity.received(b == -1 ? 0 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            activity.received(read);
+            return read;
+        }
+
+        /**
+         * Skips by reading, the skip of a socket only returns once all of it has arrived,
+         * so the data of a refused file would show no progress until it is over
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            try (BufferPool.Lease lease = BufferPool.heap(BufferPool.BUFFER_SIZE)) {
+                int read = read(lease.array(), 0, (int) Math.min(n, lease.array().length));
+                return Math.max(read, 0);
+            }
+        }
+    }
+
+    /**
+     * Reports everything written to the client to the activity of the connection
+     */
+    private static class ActivityOutputStream extends FilterOutputStream {
+        private final ConnectionActivity activity;
+
+        ActivityOutputStream(OutputStream out, ConnectionActivity activity) {
+            super(out);
+            this.activity = activity;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            activity.sent(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            activity.sent(len);
+        }
+    }
+
+    /**
+     * Writes to a print stream, which swallows errors, and fails once the stream has failed,
+     * so a file that is written out a buffer at a time stops when the client goes away
+     */
+    private static class CheckedOutputStream extends FilterOutputStream {
+        private final PrintStream target;
+
+        CheckedOutputStream(PrintStream target) {
+            super(target);
+            this.target = target;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+            if (target.checkError())
+                throw new IOException("Connection closed while a reply was written");
+        }
+    }
+
+    /**
+     * Reads a channel in blocking mode. The streams of {@link java.nio.channels.Channels} lock the channel
+     * for reading and writing alike, so a reply could not be written while the next command is awaited
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final SocketChannel channel;
+
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len < 8 * 1024)
+                return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+            //large reads go through a direct buffer the JDK does not have to copy again
+            try (BufferPool.Lease lease = BufferPool.direct(Math.min(len, BufferPool.BUFFER_SIZE))) {
+                ByteBuffer buffer = lease.buffer;
+                buffer.limit(Math.min(len, buffer.capacity()));
+                int read = channel.read(buffer);
+                if (read > 0)
+                    buffer.flip().get(b, off, read);
+                return read;
+            }
+        }
+    }
+
+    /**
+     * Writes to a channel in blocking mode, without locking out the reads
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel;
+
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len < 8 * 1024) {
+                writeOut(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+            //large writes go through a direct buffer the JDK does not have to copy again
+            try (BufferPool.Lease lease = BufferPool.direct(Math.min(len, BufferPool.BUFFER_SIZE))) {
+                ByteBuffer buffer = lease.buffer;
+                while (len > 0) {
+                    int count = Math.min(len, buffer.capacity());
+                    buffer.clear();
+                    buffer.put(b, off, count).flip();
+                    writeOut(buffer);
+                    off += count;
+                    len -= count;
+                }
+            }
+        }
+
+        private void writeOut(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
         }
     }
 
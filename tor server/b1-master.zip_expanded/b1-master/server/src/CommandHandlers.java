@@ -0,0 +1,419 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The handlers of the commands the server understands, by command type.
+ * Generating keys and encrypting files are slow, so they run on pools of their own
+ * while the connections keep reading the next commands, the work on files is shared out fairly between the users
+ */
+class CommandHandlers {
+    //replies that never change, the wire formats encode them only once
+    private static final Reply LOGIN_SUCCESS = new Reply(new Command(Command.LOGIN).addParameter(Command.SUCCESS, "").constant());
+    private static final Reply REGISTER_SUCCESS = new Reply(new Command(Command.REGISTER).addParameter(Command.SUCCESS, "").constant());
+    private static final Reply SEND_SUCCESS = new Reply(new Command(Command.SEND).addParameter(Command.SUCCESS, "").constant());
+    private static final Reply LOGIN_INVALID = invalidCredentials(Command.LOGIN);
+    private static final Reply REGISTER_INVALID = invalidCredentials(Command.REGISTER);
+    private static final Reply SEND_INVALID = invalidCredentials(Command.SEND);
+    private static final Reply RECEIVE_INVALID = invalidCredentials(Command.RECEIVE);
+    private static final Reply BATCH_INVALID = invalidCredentials(Command.BATCH);
+    private static final Reply UPLOAD_INVALID = invalidCredentials(Command.UPLOAD);
+    private static final Reply UPLOAD_SUCCESS = new Reply(new Command(Command.UPLOAD).addParameter(Command.SUCCESS, "").constant());
+
+    private final Map<String, CommandHandler> handlers = new ConcurrentHashMap<>();
+    private final DataManager dataManager;
+    private final Executor keys = new WorkerPool("keys", ServerConfig.KEY_THREADS, ServerConfig.WORKER_QUEUE);
+    private final FairScheduler files = new FairScheduler("files", ServerConfig.FILE_THREADS, ServerConfig.WORKER_QUEUE, ServerConfig.USER_QUEUE);
+    private final StripedTransfers transfers = new StripedTransfers();
+    private final WindowedUploads uploads = new WindowedUploads();
+
+    /**
+     * Creates the handlers of the standard commands
+     *
+     * @param dataManager the data manager that serves the commands
+     */
+    CommandHandlers(DataManager dataManager) {
+        this.dataManager = dataManager;
+        register(Command.LOGIN, this::login);
+        register(Command.REGISTER, this::register);
+        register(Command.SEND, this::send);
+        register(Command.RECEIVE, this::receive);
+        register(Command.BATCH, this::batch);
+        register(Command.UPLOAD, this::upload);
+        register(Command.CHUNK, this::chunk);
+    }
+
+    private static Reply invalidCredentials(String type) {
+        return new Reply(new Command(type).addParameter(Command.ERROR, "Invalid user name or password").constant());
+    }
+
+    /**
+     * @return the length of the data that follows a command, or -1 if it is missing or not a number
+     */
+    private static long payloadLength(Command cmd) {
+        try {
+            return cmd.getLongParameter(Command.LENGTH);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds a command or replaces the handler of an existing one
+     *
+     * @param type    the type of the command
+     * @param handler serves the command
+     */
+    void register(String type, CommandHandler handler) {
+        handlers.put(type, handler);
+    }
+
+    /**
+     * @return the handler of a command type or null if the command is unknown
+     */
+    CommandHandler get(String type) {
+        return handlers.get(type);
+    }
+
+    /**
+     * Runs the work of a handler, for {@link CommandHandler.Exchange#supply} implementations
+     */
+    static Reply call(Callable<Reply> work) {
+        try {
+            return work.call();
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private boolean isValid(String username, String password) {
+        return !StringUtils.isNullOrBlank(username) && !StringUtils.isNullOrBlank(password) && dataManager.isValid(username, password);
+    }
+
+    private CompletableFuture<Reply> login(Command cmd, CommandHandler.Exchange exchange) {
+        //checking the password is quick, so it is answered right away
+        return CompletableFuture.completedFuture(isValid(cmd.getParameter(Command.USERNAME), cmd.getParameter(Command.PASSWORD)) ? LOGIN_SUCCESS : LOGIN_INVALID);
+    }
+
+    private CompletableFuture<Reply> register(Command cmd, CommandHandler.Exchange exchange) {
+        String username = cmd.getParameter(Command.USERNAME);
+        String password = cmd.getParameter(Command.PASSWORD);
+        if (StringUtils.isNullOrBlank(username) || StringUtils.isNullOrBlank(password))
+            return CompletableFuture.completedFuture(REGISTER_INVALID);
+        return exchange.supply(keys, () -> {
+            try {
+                dataManager.registerUser(username, password); //generates the keys of the user
+                return REGISTER_SUCCESS;
+            } catch (Exception e) {
+                return Reply.error(Command.REGISTER, e.getMessage());
+            }
+        });
+    }
+
+    private CompletableFuture<Reply> send(Command cmd, CommandHandler.Exchange exchange) throws IOException {
+        String username = cmd.getParameter(Command.USERNAME);
+        String fileName = cmd.getParameter(Command.FILE);
+        long length = payloadLength(cmd);
+        if (length < 0) //there is no telling where the data would end
+            return CompletableFuture.completedFuture(Reply.error(Command.SEND, "Invalid file length"));
+        //the data of the file follows the command, so it is read before the next command
+        if (!isValid(username, cmd.getParameter(Command.PASSWORD))) {
+            exchange.skipPayload(length);
+            return CompletableFuture.completedFuture(SEND_INVALID);
+        }
+        if (length > ServerConfig.STREAM_THRESHOLD && cmd.getParameter(Command.TRANSFER) == null)
+            return CompletableFuture.completedFuture(sendStreamed(username, fileName, length, exchange));
+        byte[] fileBytes = exchange.readPayload(length);
+        if (cmd.getParameter(Command.TRANSFER) != null)
+            return sendStripe(cmd, username, fileName, fileBytes, exchange);
+        return exchange.supply(files.forUser(username, false), () -> {
+            String error = dataManager.saveFile(username, fileName, fileBytes);
+            return error == null ? SEND_SUCCESS : Reply.error(Command.SEND, error);
+        });
+    }
+
+    /**
+     * Saves a large file while it is received, on the thread that reads the connection.
+     * The file is never held in memory, but the connection reads nothing else until it has been saved
+     */
+    private Reply sendStreamed(String username, String fileName, long length, CommandHandler.Exchange exchange) throws IOException {
+        try (InputStream data = exchange.streamPayload(length)) {
+            dataManager.saveFile(username, fileName, data, length);
+            return SEND_SUCCESS;
+        } catch (IOException e) {
+            throw e; //the data could not be read, so the connection cannot go on
+        } catch (Exception e) {
+            return Reply.error(Command.SEND, e.getMessage());
+        }
+    }
+
+    private CompletableFuture<Reply> receive(Command cmd, CommandHandler.Exchange exchange) throws IOException {
+        String username = cmd.getParameter(Command.USERNAME);
+        String fileName = cmd.getParameter(Command.FILE);
+        if (!isValid(username, cmd.getParameter(Command.PASSWORD)))
+            return CompletableFuture.completedFuture(RECEIVE_INVALID);
+        if (cmd.getParameter(Command.TRANSFER) != null)
+            return receiveStripe(cmd, username, fileName, exchange);
+        long stored = dataManager.storedLength(username, fileName);
+        if (stored > ServerConfig.STREAM_THRESHOLD)
+            return receiveStreamed(username, fileName, exchange);
+        exchange.reserve(stored); //the file is held until it has been written out
+        return exchange.supply(files.forUser(username, false), () -> {
+            try {
+                byte[] data = dataManager.loadFile(username, fileName);
+                return new Reply(new Command(Command.RECEIVE).addParameter(Command.SUCCESS, data.length), data);
+            } catch (Exception e) {
+                return Reply.error(Command.RECEIVE, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Answers with a large file that is decrypted while it is written out, so the first data leaves right away
+     * and the file is never held in memory. If the file turns out to be corrupted its end is not sent
+     * and the connection is closed, so the client never gets a whole file that does not match its hash.
+     * The version of the file that is sent is held until it has been written out, a save of the file meanwhile does not touch it.
+     * The pool only opens the file, it is decrypted and written out by the connection, so a slow client holds no thread of the pool
+     */
+    private CompletableFuture<Reply> receiveStreamed(String username, String fileName, CommandHandler.Exchange exchange) {
+        return exchange.supply(files.forUser(username, false), () -> {
+            try {
+                DataManager.StoredFile stored = dataManager.openFile(username, fileName);
+                exchange.hold(stored);
+                long length = stored.length();
+                return new Reply(new Command(Command.RECEIVE).addParameter(Command.SUCCESS, length), length, stored::writeTo);
+            } catch (Exception e) {
+                return Reply.error(Command.RECEIVE, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Stores a stripe of a file that is sent over several connections, the file is saved once the last stripe has arrived
+     * and the stripe that completed it is answered with the result
+     */
+    private CompletableFuture<Reply> sendStripe(Command cmd, String username, String fileName, byte[] stripeBytes, CommandHandler.Exchange exchange) {
+        long transferId = cmd.getLongParameter(Command.TRANSFER);
+        int stripe = (int) cmd.getLongParameter(Command.STRIPE);
+        int stripes = (int) cmd.getLongParameter(Command.COUNT);
+        long offset = cmd.getLongParameter(Command.OFFSET);
+        long total = cmd.getLongParameter(Command.TOTAL);
+        return exchange.supply(files.forUser(username, false), () -> {
+            StripedTransfers.Upload upload = transfers.upload(username, transferId, stripe, stripes, offset, total, stripeBytes);
+            if (upload == null)
+                return SEND_SUCCESS; //stripes are still missing
+            try (upload) {
+                String error = dataManager.saveFile(username, fileName, upload.data);
+                return error == null ? SEND_SUCCESS : Reply.error(Command.SEND, error);
+            }
+        });
+    }
+
+    /**
+     * Answers a stripe of a file that is retrieved over several connections with its part of the file
+     */
+    private CompletableFuture<Reply> receiveStripe(Command cmd, String username, String fileName, CommandHandler.Exchange exchange) {
+        long transferId = cmd.getLongParameter(Command.TRANSFER);
+        int stripe = (int) cmd.getLongParameter(Command.STRIPE);
+        int stripes = (int) cmd.getLongParameter(Command.COUNT);
+        return exchange.supply(files.forUser(username, false), () -> {
+            try {
+                byte[] data = transfers.download(username, transferId, stripe, stripes, dataManager.storedLength(username, fileName),
+                        () -> dataManager.loadFile(username, fileName));
+                int from = (int) ((long) data.length * stripe / stripes);
+                int to = (int) ((long) data.length * (stripe + 1) / stripes);
+                exchange.reserve(to - from); //the stripe is copied out of the file
+                Command reply = new Command(Command.RECEIVE)
+                        .addParameter(Command.SUCCESS, to - from)
+                        .addParameter(Command.OFFSET, from)
+                        .addParameter(Command.TOTAL, data.length);
+                return new Reply(reply, Arrays.copyOfRange(data, from, to));
+            } catch (Exception e) {
+                return Reply.failure(Command.RECEIVE, e); //busy if there is no memory for the file
+            }
+        });
+    }
+
+    /**
+     * Starts or resumes an upload and answers with its token, the offset the data should start from and the first window
+     */
+    private CompletableFuture<Reply> upload(Command cmd, CommandHandler.Exchange exchange) {
+        String username = cmd.getParameter(Command.USERNAME);
+        String fileName = cmd.getParameter(Command.FILE);
+        long total = cmd.getLongParameter(Command.TOTAL);
+        long token = cmd.getParameter(Command.TRANSFER) != null ? cmd.getLongParameter(Command.TRANSFER) : -1;
+        if (!isValid(username, cmd.getParameter(Command.PASSWORD)))
+            return CompletableFuture.completedFuture(UPLOAD_INVALID);
+        return exchange.supply(files.forUser(username, true), () -> {
+            try {
+                WindowedUploads.Upload upload = uploads.start(username, fileName, total, token, exchange.stats());
+                return new Reply(window(Command.UPLOAD, upload).addParameter(Command.TRANSFER, upload.token));
+            } catch (Exception e) {
+                return Reply.failure(Command.UPLOAD, e); //busy if too many uploads are open
+            }
+        });
+    }
+
+    /**
+     * Stores a chunk of an upload. Every so often the stored data is acknowledged with a new window,
+     * once the last chunk has been stored the file is saved and the upload is answered
+     */
+    private CompletableFuture<Reply> chunk(Command cmd, CommandHandler.Exchange exchange) throws IOException {
+        long token = cmd.getLongParameter(Command.TRANSFER);
+        long offset = cmd.getLongParameter(Command.OFFSET);
+        long length = payloadLength(cmd);
+        if (length < 0) //there is no telling where the data would end
+            return CompletableFuture.completedFuture(Reply.error(Command.CHUNK, "Invalid chunk length"));
+        WindowedUploads.Upload upload = uploads.get(token);
+        //the window is checked before the data is read, so a client cannot make the server hold more than a window
+        if (upload == null || !upload.accepts(offset, length)) {
+            exchange.skipPayload(length);
+            return CompletableFuture.completedFuture(Reply.error(Command.CHUNK, upload == null ? "Unknown upload" : "Chunk out of window"));
+        }
+        //chunks are written by the thread that reads them, so they reach the spool file in order
+        try (InputStream data = exchange.streamPayload(length)) {
+            if (!upload.write(offset, length, data, exchange.stats()))
+                return CompletableFuture.completedFuture(null);
+        }
+        if (!upload.isComplete())
+            return CompletableFuture.completedFuture(new Reply(window(Command.CHUNK, upload)));
+        return exchange.supply(files.forUser(upload.user, false), () -> {
+            try (InputStream data = upload.open()) { //the file is encrypted straight from the spool file
+                dataManager.saveFile(upload.user, upload.fileName, data, upload.total);
+            } catch (Exception e) {
+                return Reply.error(Command.UPLOAD, e.getMessage()); //the upload is kept, so saving it can be tried again
+            }
+            uploads.finish(upload);
+            System.out.println("Upload of " + upload.fileName + " saved, " + exchange.stats());
+            return UPLOAD_SUCCESS;
+        });
+    }
+
+    private static Command window(String type, WindowedUploads.Upload upload) {
+        return new Command(type)
+                .addParameter(Command.OFFSET, upload.getAcknowledged())
+                .addParameter(Command.WINDOW, upload.getGranted());
+    }
+
+    /**
+     * Reads the commands of a batch and the data of the files it sends.
+     * The credentials are checked once for the whole batch, the commands are served one after the other
+     * and answered in order, the batch reply comes last
+     */
+    private CompletableFuture<Reply> batch(Command cmd, CommandHandler.Exchange exchange) throws IOException {
+        String username = cmd.getParameter(Command.USERNAME);
+        String password = cmd.getParameter(Command.PASSWORD);
+        long count = cmd.getLongParameter(Command.COUNT);
+        if (count < 0 || count > ServerConfig.MAX_BATCH)
+            throw new IOException("Invalid batch size " + count);
+        boolean valid = isValid(username, password);
+        InOrder parts = new InOrder(exchange);
+        for (int idx = 0; idx < count; idx++) {
+            Command part = exchange.readCommand();
+            if (part == null)
+                throw new EOFException("Connection closed in the middle of a batch");
+            String type = part.getType();
+            if (!type.equals(Command.SEND) && !type.equals(Command.RECEIVE))
+                throw new IOException("Command " + type + " cannot be part of a batch");
+            //the parts are served with the credentials of the batch
+            part.addParameter(Command.USERNAME, valid ? username : "").addParameter(Command.PASSWORD, valid ? password : "");
+            CompletableFuture<Reply> reply;
+            try {
+                reply = handlers.get(type).handle(part, parts);
+            } catch (RejectedExecutionException e) {
+                reply = CompletableFuture.failedFuture(e); //only this part is refused, the rest of the batch is read on
+            }
+            parts.add(type, reply);
+        }
+        Reply done = valid ? new Reply(new Command(Command.BATCH).addParameter(Command.SUCCESS, count)) : BATCH_INVALID;
+        return parts.written.thenApply(ignored -> done);
+    }
+
+    /**
+     * Serves the parts of a batch one after the other and writes their replies in order
+     */
+    private static class InOrder implements CommandHandler.Exchange {
+        private final CommandHandler.Exchange exchange;
+        private CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+
+        InOrder(CommandHandler.Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        void add(String type, CompletableFuture<Reply> reply) {
+            CompletableFuture<Reply> answered = reply.handle((r, error) -> error == null ? r : Reply.failure(type, error));
+            written = written.thenCombine(answered, (ignored, r) -> r).thenCompose(exchange::reply);
+        }
+
+        @Override
+        public byte[] readPayload(long length) throws IOException {
+            return exchange.readPayload(length);
+        }
+
+        /**
+         * The data is streamed once the previous parts have been answered, so it is saved in order like the rest
+         */
+        @Override
+        public InputStream streamPayload(long length) throws IOException {
+            try {
+                written.handle((ignored, error) -> null).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the parts of a batch");
+            } catch (ExecutionException ignored) {
+            }
+            return exchange.streamPayload(length);
+        }
+
+        @Override
+        public void skipPayload(long length) throws IOException {
+            exchange.skipPayload(length);
+        }
+
+        /**
+         * The memory of the parts is given back once the whole batch has been answered
+         */
+        @Override
+        public void reserve(long bytes) throws IOException {
+            exchange.reserve(bytes);
+        }
+
+        @Override
+        public void hold(AutoCloseable resource) {
+            exchange.hold(resource);
+        }
+
+        @Override
+        public Command readCommand() throws IOException {
+            return exchange.readCommand();
+        }
+
+        /**
+         * Starts the work once the previous part has been answered, so a part sees what the parts before it did
+         */
+        @Override
+        public CompletableFuture<Reply> supply(Executor executor, Callable<Reply> work) {
+            return written.thenApplyAsync(ignored -> call(work), executor);
+        }
+
+        @Override
+        public TransferStats stats() {
+            return exchange.stats();
+        }
+
+        @Override
+        public CompletableFuture<Void> reply(Reply reply) {
+            return exchange.reply(reply);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps count of the open connections and refuses new ones above a limit
+ */
+class ConnectionLimiter {
+    private final int maxConnections;
+    private final AtomicInteger open = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param maxConnections the maximum number of connections that may be open at the same time
+     */
+    ConnectionLimiter(int maxConnections) {
+        this.maxConnections = maxConnections;
+        Metrics.register("connections.open", open::get);
+        Metrics.register("connections.rejected", rejected::sum);
+    }
+
+    /**
+     * Reserves a place for a new connection
+     *
+     * @return false if the limit has been reached
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int current = open.get();
+            if (current >= maxConnections) {
+                rejected.increment();
+                return false;
+            }
+            if (open.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Frees the place of a connection that has been closed
+     */
+    void release() {
+        open.decrementAndGet();
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Closes the connections that have not made progress for longer than the timeout of the phase they are in,
+ * or whose client has not taken any of a reply for longer than the reply timeout.
+ * Closing a connection wakes up the thread that is blocked reading or writing it, which then drops whatever it has
+ */
+class ConnectionReaper {
+    private static final long CHECK_MILLIS = 1000L;
+    private static final Set<ConnectionActivity> connections = ConcurrentHashMap.newKeySet();
+    private static final Map<ConnectionActivity.Phase, LongAdder> reaped = new EnumMap<>(ConnectionActivity.Phase.class);
+    private static final LongAdder reapedReplies = new LongAdder();
+
+    static {
+        for (ConnectionActivity.Phase phase : ConnectionActivity.Phase.values()) {
+            LongAdder counter = new LongAdder();
+            reaped.put(phase, counter);
+            Metrics.register("reaped." + phase.name().toLowerCase(), counter::sum);
+        }
+        Metrics.register("reaped.reply", reapedReplies::sum);
+        Metrics.register("connections.watched", connections::size);
+    }
+
+    /**
+     * Starts the thread that looks for stalled connections
+     */
+    static void start() {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(CHECK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reapStalled();
+            }
+        }, "reaper");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    static void watch(ConnectionActivity connection) {
+        connections.add(connection);
+    }
+
+    static void forget(ConnectionActivity connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * @return true if no connection is in the middle of a command or has requests in flight
+     */
+    static boolean isQuiet() {
+        for (ConnectionActivity connection : connections) {
+            ConnectionActivity.Phase phase = connection.getPhase();
+            if (phase == ConnectionActivity.Phase.PAYLOAD || phase == ConnectionActivity.Phase.PROCESSING || connection.hasRequests())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Closes every connection, whatever it is doing
+     */
+    static void closeAll() {
+        for (ConnectionActivity connection : connections) {
+            connections.remove(connection);
+            connection.close();
+        }
+    }
+
+    /**
+     * @return a line about every open connection, in the order they were opened
+     */
+    static List<String> describeAll() {
+        return connections.stream()
+                .sorted(Comparator.comparingLong(ConnectionActivity::getId))
+                .map(ConnectionActivity::describe)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Closes a single connection, whatever it is doing
+     *
+     * @param id the id of the connection
+     * @return false if there is no open connection with the id
+     */
+    static boolean close(long id) {
+        for (ConnectionActivity connection : connections) {
+            if (connection.getId() == id && connections.remove(connection)) {
+                connection.close();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void reapStalled() {
+        for (ConnectionActivity connection : connections) {
+            if (ServerConfig.REPLY_TIMEOUT > 0 && connection.replyStalledMillis() > ServerConfig.REPLY_TIMEOUT * 1000L) {
+                System.out.println("Closing connection stalled writing a reply");
+                reapedReplies.increment();
+                connections.remove(connection);
+                connection.close();
+                continue;
+            }
+            ConnectionActivity.Phase phase = connection.getPhase();
+            if (phase == ConnectionActivity.Phase.IDLE && connection.hasRequests())
+                continue;
+            long timeout = timeoutMillis(phase);
+            if (timeout > 0 && connection.stalledMillis() > timeout) {
+                System.out.println("Closing connection stalled in phase " + phase);
+                reaped.get(phase).increment();
+                connections.remove(connection);
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * @return the time a connection may stay in a phase without progress, 0 if it may stay for ever
+     */
+    private static long timeoutMillis(ConnectionActivity.Phase phase) {
+        switch (phase) {
+            case IDLE:
+                return ServerConfig.IDLE_TIMEOUT * 1000L;
+            case HEADER:
+                return ServerConfig.HEADER_TIMEOUT * 1000L;
+            case PAYLOAD:
+                return ServerConfig.PAYLOAD_TIMEOUT * 1000L;
+            default:
+                return 0;
+        }
+    }
+}
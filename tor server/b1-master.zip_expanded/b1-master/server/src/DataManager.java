@@ -5,10 +5,13 @@ import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @SuppressWarnings("FieldCanBeLocal")
 class DataManager {
@@ -19,6 +22,9 @@ class DataManager {
     private static final String KEY_FILE_SUFFIX = ".key";
     private static final String SEPARATOR = ":";
     private List<User> users = new ArrayList<>();
+    //a lock instead of synchronized methods, so that waiting virtual threads do not pin their carrier threads
+    private final ReadWriteLock usersLock = new ReentrantReadWriteLock();
+    private boolean closed; //no more users are registered, guarded by the write lock
 
     /**
      * Checks if the user trying to log in is valid
@@ -27,8 +33,29 @@ class DataManager {
      * @param password the password of the user trying to log in
      * @return true if the user exists
      */
-    synchronized boolean isValid(String username, String password) {
-        return users.stream().anyMatch(u -> u.validate(username, password));
+    boolean isValid(String username, String password) {
+        usersLock.readLock().lock();
+        try {
+            return users.stream().anyMatch(u -> u.validate(username, password));
+        } finally {
+            usersLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds a registered user
+     *
+     * @param username the user name of the user
+     * @return the user
+     * @throws java.util.NoSuchElementException if there is no such user
+     */
+    private User findUser(String username) {
+        usersLock.readLock().lock();
+        try {
+            return users.stream().filter(u -> u.username.equalsIgnoreCase(username)).findFirst().orElseThrow();
+        } finally {
+            usersLock.readLock().unlock();
+        }
     }
 
     /**
@@ -38,8 +65,19 @@ class DataManager {
      * @param password the password of the new user
      * @throws Exception an exception describing what went wrong
      */
+    void registerUser(String username, String password) throws Exception {
+        usersLock.writeLock().lock();
+        try {
+            registerUserLocked(username, password);
+        } finally {
+            usersLock.writeLock().unlock();
+        }
+    }
+
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    synchronized void registerUser(String username, String password) throws Exception {
+    private void registerUserLocked(String username, String password) throws Exception {
+        if (closed)
+            throw new Exception("Server is shutting down");
         if (users.stream().anyMatch(u -> u.username.equalsIgnoreCase(username))) { //check if the user already exists
             throw new Exception("User already exists");
         }
@@ -59,10 +97,32 @@ class DataManager {
         }
     }
 
+    /**
+     * Waits until the user that is being registered has been saved and stops registering users,
+     * the list of users is written whenever a user is registered so nothing is left to save after that
+     */
+    void close() {
+        usersLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            usersLock.writeLock().unlock();
+        }
+    }
+
     /**
      * Loads the private/public keys for the server, as well as all the users that are saved
      */
-    synchronized void loadData() throws Exception {
+    void loadData() throws Exception {
+        usersLock.writeLock().lock();
+        try {
+            loadDataLocked();
+        } finally {
+            usersLock.writeLock().unlock();
+        }
+    }
+
+    private void loadDataLocked() throws Exception {
         //load the keys for the server
         File publicKeyFile = new File(WORK_PATH, "public" + KEY_FILE_SUFFIX);
         File privateKeyFile = new File(WORK_PATH, "private" + KEY_FILE_SUFFIX);
@@ -94,6 +154,7 @@ class DataManager {
                     PublicKey publicKey = Encryption.LoadPublicKey(new File(WORK_PATH, username.toLowerCase() + "\\public.key")); //then load the public and private keys from the user's folder
                     PrivateKey privateKey = Encryption.LoadPrivateKey(new File(WORK_PATH, username.toLowerCase() + "\\private.key"));
                     users.add(new User(username, password, publicKey, privateKey)); //if all went well we add the user to our valid list of users
+                    FileVersions.sweep(WORK_PATH + username.toLowerCase() + "\\"); //versions an earlier run could not delete
                 } catch (Exception ignored) { //if there was an error that means that there was something wrong with the loading, we skip to the next user
                 }
             }
@@ -122,52 +183,143 @@ class DataManager {
     }
 
     /**
-     * saves a file from a specific stream into a file encrypted
+     * saves the data of a file into a file encrypted
      *
-     * @param userName the user whose repository will be used
-     * @param fileName the name of the file to save
-     * @param length   the length of the file that should be read
-     * @param in       the stream that will be read for the data
+     * @param userName  the user whose repository will be used
+     * @param fileName  the name of the file to save
+     * @param fileBytes the data of the file
      * @return null if there is no problem otherwise the error message
      */
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    String saveFile(String userName, String fileName, long length, DataInputStream in) {
+    String saveFile(String userName, String fileName, byte[] fileBytes) {
         try {
-            byte[] fileBytes = StreamUtils.readData(in, length); //load all file data
-            User user = users.stream().filter(u -> u.username.equalsIgnoreCase(userName)).findFirst().orElseThrow();//load user information
-            File file = new File(WORK_PATH + user.username.toLowerCase() + "\\" + fileName + ".enc");
-            File fileSHA = new File(WORK_PATH + user.username.toLowerCase() + "\\" + fileName + ".sha");
-            if (file.exists())
-                file.delete();
-            if (fileSHA.exists())
-                fileSHA.delete();
-
-            String hash = Encryption.GenerateHash(fileBytes); //generate SHA for the file
-            Encryption.SaveEncryptedWithRSA(hash.getBytes(StandardCharsets.UTF_8), fileSHA, user.privateKey); //save the file after encoding it
-            SecretKey aes = Encryption.GenerateAESKey(); //generate an AES key
-            byte[] iv = Encryption.GenerateIV();//generate an iv
-            Encryption.SaveEncryptedWithAES(fileBytes, file, aes, user.privateKey, iv); //encode the file with a combination of AES and RSA and save it
+            saveFile(userName, fileName, new ByteArrayInputStream(fileBytes), fileBytes.length);
             return null;
         } catch (Exception e) {
             return e.getMessage();
         }
+    }
+
+    /**
+     * saves a file into a file encrypted while it is read, the data is hashed and encrypted a buffer at a time
+     * so saving takes the same memory however large the file is.
+     * The file is saved as a new version that replaces the old one only once it is whole, so the file can be read meanwhile
+     *
+     * @param userName the user whose repository will be used
+     * @param fileName the name of the file to save
+     * @param in       the stream the data of the file is read from
+     * @param length   the length of the file
+     * @throws IOException if the data cannot be read, nothing of the file is kept then
+     * @throws Exception   an exception describing what else went wrong
+     */
+    void saveFile(String userName, String fileName, InputStream in, long length) throws Exception {
+        User user = findUser(userName);//load user information
+        FileVersions.Version version = FileVersions.create(basePath(user, fileName));
 
+        SecretKey aes = Encryption.GenerateAESKey(); //generate an AES key
+        byte[] iv = Encryption.GenerateIV();//generate an iv
+        MessageDigest digest = Encryption.NewHash(); //the SHA of the file is computed while it is encrypted
+        try {
+            Encryption.SaveEncryptedWithAES(in, length, version.file, aes, user.privateKey, iv, digest); //encode the file with a combination of AES and RSA and save it
+            String hash = Encryption.HashToHex(digest.digest());
+            Encryption.SaveEncryptedWithRSA(hash.getBytes(StandardCharsets.UTF_8), version.hash, user.privateKey); //save the SHA after encoding it
+            FileVersions.publish(version); //readers see the new file from now on
+        } catch (Exception e) {
+            version.delete(); //a file that was cut off is never seen, the old one stays
+            throw e;
+        }
     }
 
-    byte[] loadFile(String userName, String fileName) throws Exception {
-        User user = users.stream().filter(u -> u.username.equalsIgnoreCase(userName)).findFirst().orElseThrow();//load user information
-        File file = new File(WORK_PATH + user.username.toLowerCase() + "\\" + fileName + ".enc");
-        File fileSHA = new File(WORK_PATH + user.username.toLowerCase() + "\\" + fileName + ".sha");
-        if (!file.exists() || !fileSHA.exists())
+    /**
+     * @return the path of a saved file without a suffix
+     */
+    private static String basePath(User user, String fileName) {
+        return WORK_PATH + user.username.toLowerCase() + "\\" + fileName;
+    }
+
+    /**
+     * @return how many bytes a saved file takes on disk, about as much as it takes in memory once loaded, 0 if there is no such file
+     */
+    long storedLength(String userName, String fileName) throws IOException {
+        User user = findUser(userName);
+        try (FileVersions.Version version = FileVersions.open(basePath(user, fileName))) {
+            return version.file.length();
+        }
+    }
+
+    /**
+     * Opens a saved file to be written out, the version that is open is kept whole until it is closed
+     * even if the file is saved again meanwhile
+     *
+     * @throws Exception if there is no such file
+     */
+    StoredFile openFile(String userName, String fileName) throws Exception {
+        User user = findUser(userName);
+        FileVersions.Version version = FileVersions.open(basePath(user, fileName));
+        if (!version.exists()) {
+            version.close();
             throw new Exception("Could not locate file " + fileName);
-        byte[] fileData = Encryption.LoadDecryptedWithAES(file, user.publicKey);//decrypt the file and load it
-        String hash = Encryption.GenerateHash(fileData);
-        String originalHash = new String(Encryption.LoadDecryptedWithRSA(fileSHA, user.publicKey)); //load the originally saved SHA
-        if (!hash.equals(originalHash)) {
-            throw new Exception("File has been corrupted");
         }
-        return fileData;
+        return new StoredFile(user, fileName, version);
     }
 
+    byte[] loadFile(String userName, String fileName) throws Exception {
+        try (StoredFile stored = openFile(userName, fileName)) {
+            return stored.load();
+        }
+    }
+
+    /**
+     * A version of a saved file that is kept while it is read
+     */
+    static class StoredFile implements AutoCloseable {
+        private final User user;
+        private final String fileName;
+        private final FileVersions.Version version;
+
+        private StoredFile(User user, String fileName, FileVersions.Version version) {
+            this.user = user;
+            this.fileName = fileName;
+            this.version = version;
+        }
+
+        /**
+         * @return the length of the file once it is decrypted
+         */
+        long length() throws Exception {
+            return Encryption.DecryptedLength(version.file, user.publicKey);
+        }
 
+        byte[] load() throws Exception {
+            byte[] fileData = Encryption.LoadDecryptedWithAES(version.file, user.publicKey);//decrypt the file and load it
+            String hash = Encryption.GenerateHash(fileData);
+            String originalHash = new String(Encryption.LoadDecryptedWithRSA(version.hash, user.publicKey)); //load the originally saved SHA
+            if (!hash.equals(originalHash)) {
+                throw new Exception("File has been corrupted");
+            }
+            return fileData;
+        }
+
+        /**
+         * Decrypts the file and writes it out a buffer at a time, so it takes the same memory however large it is.
+         * The end of the file is only written once its SHA has been checked
+         *
+         * @param out where the file is written to, exactly {@link #length} bytes unless something goes wrong
+         * @throws IOException if the file could not be written out whole, part of it may have been written
+         */
+        void writeTo(OutputStream out) throws IOException {
+            try {
+                String originalHash = new String(Encryption.LoadDecryptedWithRSA(version.hash, user.publicKey)); //load the originally saved SHA
+                Encryption.LoadDecryptedWithAES(version.file, user.publicKey, originalHash, out);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Could not send file " + fileName + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() {
+            version.close();
+        }
+    }
 }
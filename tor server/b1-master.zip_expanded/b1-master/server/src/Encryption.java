@@ -3,16 +3,25 @@ import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Formatter;
 
 class Encryption {
+    private static final int AES_HEADER = 256 + 16; //the encrypted AES key and the iv at the start of a file encrypted with AES
 
     /**
      * Loads the data from a byte array and calculates a hex string with its sha
@@ -21,8 +30,21 @@ class Encryption {
      * @return a string hex of the hash
      */
     static String GenerateHash(byte[] data) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance("SHA-1");
-        byte[] hash = md.digest(data);
+        return HashToHex(NewHash().digest(data));
+    }
+
+    /**
+     * @return a digest of the kind {@link #GenerateHash} uses, for data that comes in parts
+     */
+    static MessageDigest NewHash() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-1");
+    }
+
+    /**
+     * @param hash the hash computed by a digest from {@link #NewHash}
+     * @return the hash as a hex string, like {@link #GenerateHash} returns it
+     */
+    static String HashToHex(byte[] hash) {
         Formatter formatter = new Formatter();
         for (byte b : hash) {
             formatter.format("%02x", b);
@@ -139,38 +161,232 @@ class Encryption {
         return iv;
     }
 
-    static void SaveEncryptedWithAES(byte[] bytes, File file, SecretKey aes, PrivateKey privateKey, byte[] iv) throws GeneralSecurityException, IOException {
+    /**
+     * Encrypts data while it is read from a stream and saves it, only a buffer of the data is in memory at any time
+     *
+     * @param in         the stream the data is read from
+     * @param length     the number of bytes to read
+     * @param file       the file to save to
+     * @param aes        the key the data is encrypted with
+     * @param privateKey the key the AES key is encrypted with
+     * @param iv         the iv of the AES encryption
+     * @param digest     updated with the data as it goes by, so the hash of the file needs no second pass
+     * @throws EOFException if the stream ends before all the data has been read
+     */
+    static void SaveEncryptedWithAES(InputStream in, long length, File file, SecretKey aes, PrivateKey privateKey, byte[] iv, MessageDigest digest) throws GeneralSecurityException, IOException {
         IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        try (FileOutputStream fos = new FileOutputStream(file)) {//open the output file for saving
+        //the file is written behind: a slice is written by the disk threads while the next one is received and encrypted
+        try (DiskIO.Writer out = DiskIO.writer(file.toPath())) {//open the output file for saving
             Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
             cipher.init(Cipher.ENCRYPT_MODE, privateKey);
             byte[] keyBytes = cipher.doFinal(aes.getEncoded());//encode the AES key with the private key
-            fos.write(keyBytes); //save the AES key to the start of the file
-            fos.write(iv); //save the iv next
+            out.write(keyBytes); //save the AES key to the start of the file
+            out.write(iv); //save the iv next
             cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
             cipher.init(Cipher.ENCRYPT_MODE, aes, ivSpec);
-            fos.write(cipher.doFinal(bytes)); //save the file using the aes key and the iv spec
-            fos.flush();
+            try (BufferPool.Lease input = BufferPool.heap(BufferPool.BUFFER_SIZE);
+                 BufferPool.Lease output = BufferPool.heap(BufferPool.BUFFER_SIZE)) { //a block of the data may be left over from the previous update
+                byte[] buffer = input.array();
+                byte[] encrypted = output.array();
+                while (length > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(BufferPool.BUFFER_SIZE - 16, length));
+                    if (read == -1)
+                        throw new EOFException("The data ended " + length + " bytes early");
+                    digest.update(buffer, 0, read);
+                    out.write(encrypted, 0, cipher.update(buffer, 0, read, encrypted)); //save the file using the aes key and the iv spec
+                    length -= read;
+                }
+                out.write(encrypted, 0, cipher.doFinal(encrypted, 0));
+            }
         }
     }
 
     static byte[] LoadDecryptedWithAES(File file, PublicKey publicKey) throws GeneralSecurityException, IOException {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-            cipher.init(Cipher.DECRYPT_MODE, publicKey);
-            byte[] b = new byte[256];
-            fis.read(b); //load the first 256 bytes from the file which contain the key
-            byte[] keyBytes = cipher.doFinal(b); //and decode them
-            SecretKeySpec aes = new SecretKeySpec(keyBytes, "AES"); //to produce the AES key
-            byte[] iv = new byte[128 / 8];
-            fis.read(iv);//read the next 128/8 bytes  to get the iv
-            IvParameterSpec ivSpec = new IvParameterSpec(iv);
-            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.DECRYPT_MODE, aes, ivSpec);
-            return cipher.doFinal(fis.readAllBytes()); //read the rest of the bytes decoded with the AES key
+        try (Ciphertext data = new Ciphertext(file, publicKey);
+             BufferPool.Lease input = BufferPool.heap(BufferPool.BUFFER_SIZE);
+             BufferPool.Lease output = BufferPool.heap(BufferPool.BUFFER_SIZE)) {
+            long length = data.plainLength();
+            if (length > Integer.MAX_VALUE - 8)
+                throw new IOException("File is too large to be loaded whole");
+            Cipher cipher = data.cipher();
+            byte[] fileData = new byte[(int) length];
+            int loaded = 0;
+            int read;
+            while ((read = data.read(input.array(), BufferPool.BUFFER_SIZE - 16)) != -1) { //the cipher may add a block it held back
+                int decrypted = cipher.update(input.array(), 0, read, output.array());
+                System.arraycopy(output.array(), 0, fileData, loaded, decrypted);
+                loaded += decrypted;
+            }
+            int decrypted = cipher.doFinal(output.array(), 0);
+            System.arraycopy(output.array(), 0, fileData, loaded, decrypted);
+            return fileData;
+        } catch (IndexOutOfBoundsException e) { //the data does not fit the length its last block gave
+            throw new GeneralSecurityException("File has been corrupted");
+        }
+    }
+
+    /**
+     * Finds out how long a file saved by {@link #SaveEncryptedWithAES} is once decrypted, without decrypting all of it
+     *
+     * @param file      the encrypted file
+     * @param publicKey the key the AES key was encrypted with
+     * @return the length of the data
+     */
+    static long DecryptedLength(File file, PublicKey publicKey) throws GeneralSecurityException, IOException {
+        try (Ciphertext data = new Ciphertext(file, publicKey)) {
+            return data.plainLength();
+        }
+    }
+
+    /**
+     * Decrypts a file saved by {@link #SaveEncryptedWithAES} and writes it out a buffer at a time.
+     * The last data is held back until the whole file has been hashed, if the hash does not match
+     * the file is never written out completely
+     *
+     * @param file      the encrypted file
+     * @param publicKey the key the AES key was encrypted with
+     * @param hash      the hash the data must have, as {@link #GenerateHash} returns it
+     * @param out       where the data is written to
+     * @throws GeneralSecurityException if the file has been corrupted, part of it may have been written then
+     */
+    static void LoadDecryptedWithAES(File file, PublicKey publicKey, String hash, OutputStream out) throws GeneralSecurityException, IOException {
+        try (Ciphertext data = new Ciphertext(file, publicKey);
+             BufferPool.Lease input = BufferPool.heap(BufferPool.BUFFER_SIZE);
+             BufferPool.Lease output = BufferPool.heap(BufferPool.BUFFER_SIZE);
+             BufferPool.Lease hold = BufferPool.heap(BufferPool.BUFFER_SIZE)) {
+            Cipher cipher = data.cipher();
+            MessageDigest digest = NewHash();
+            byte[] buffer = input.array();
+            byte[] decrypted = output.array();
+            byte[] held = hold.array(); //what was decrypted last, it is only written once the next part is there
+            int heldLength = 0;
+            int read;
+            while ((read = data.read(buffer, BufferPool.BUFFER_SIZE - 16)) != -1) { //the cipher may add a block it held back
+                int length = cipher.update(buffer, 0, read, decrypted);
+                if (length == 0)
+                    continue;
+                out.write(held, 0, heldLength);
+                byte[] swap = held;
+                held = decrypted;
+                decrypted = swap;
+                heldLength = length;
+                digest.update(held, 0, heldLength);
+            }
+            byte[] last = cipher.doFinal();
+            digest.update(last);
+            if (!HashToHex(digest.digest()).equals(hash))
+                throw new GeneralSecurityException("File has been corrupted");
+            out.write(held, 0, heldLength);
+            out.write(last);
+        }
+    }
+
+    /**
+     * The encrypted data of a file saved by {@link #SaveEncryptedWithAES}, read a slice at a time.
+     * Large files are memory-mapped, their data is copied straight from the page cache into the buffers of the cipher
+     * and a file that is downloaded often stays in the page cache instead of being read again.
+     * Mapping a file costs more than reading it when it is small, so small files are read ahead by the disk threads instead
+     */
+    private static class Ciphertext implements AutoCloseable {
+        private static final long REGION = 256L * 1024 * 1024; //how much of a file is mapped at once
+
+        private final FileChannel channel;
+        private final long end;
+        private final boolean mapped;
+        private final SecretKeySpec aes;
+        private final byte[] iv;
+        private long position = AES_HEADER;
+        private MappedByteBuffer region; //the mapped part that is being read, it is unmapped once it is collected
+        private final File file;
+        private DiskIO.Reader reader; //reads the files that are not mapped
+
+        Ciphertext(File file, PublicKey publicKey) throws GeneralSecurityException, IOException {
+            this.file = file;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                end = channel.size();
+                long length = end - AES_HEADER;
+                if (length < 16 || length % 16 != 0)
+                    throw new GeneralSecurityException("File has been corrupted");
+                ByteBuffer header = ByteBuffer.allocate(AES_HEADER);
+                while (header.hasRemaining() && channel.read(header, header.position()) != -1) ;
+                aes = DecryptAESKey(header.array(), publicKey);
+                iv = Arrays.copyOfRange(header.array(), 256, AES_HEADER);
+                mapped = length >= ServerConfig.MAP_THRESHOLD;
+            } catch (GeneralSecurityException | IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return a cipher that decrypts the data
+         */
+        Cipher cipher() throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, aes, new IvParameterSpec(iv));
+            return cipher;
         }
 
+        /**
+         * Only the last block is decrypted, with the block before it (or the iv) as its iv, to see how much padding it has
+         *
+         * @return the length of the data once it is decrypted
+         */
+        long plainLength() throws GeneralSecurityException, IOException {
+            ByteBuffer blocks = ByteBuffer.allocate(32); //the block before the last one and the last one
+            while (blocks.hasRemaining() && channel.read(blocks, end - 32 + blocks.position()) != -1) ;
+            boolean single = end - AES_HEADER == 16;
+            Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, aes, new IvParameterSpec(single ? iv : Arrays.copyOfRange(blocks.array(), 0, 16)));
+            int padding = cipher.doFinal(blocks.array(), 16, 16)[15];
+            if (padding < 1 || padding > 16)
+                throw new GeneralSecurityException("File has been corrupted");
+            return end - AES_HEADER - padding;
+        }
+
+        /**
+         * Reads the next slice of the data
+         *
+         * @param b   where the data goes
+         * @param len the most that is read
+         * @return the number of bytes read, -1 once all of the data has been read
+         */
+        int read(byte[] b, int len) throws IOException {
+            if (!mapped) {
+                if (reader == null)
+                    reader = DiskIO.reader(file.toPath(), AES_HEADER);
+                return reader.read(b, len);
+            }
+            if (region == null || !region.hasRemaining()) {
+                if (position >= end)
+                    return -1;
+                long size = Math.min(REGION, end - position);
+                region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                position += size;
+            }
+            int count = Math.min(len, region.remaining());
+            region.get(b, 0, count);
+            return count;
+        }
 
+        @Override
+        public void close() throws IOException {
+            if (reader != null)
+                reader.close();
+            region = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * @param header the header of a file saved by {@link #SaveEncryptedWithAES}, the encrypted AES key and the iv
+     * @return the AES key
+     */
+    private static SecretKeySpec DecryptAESKey(byte[] header, PublicKey publicKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.DECRYPT_MODE, publicKey);
+        return new SecretKeySpec(cipher.doFinal(header, 0, 256), "AES");
     }
 
 }
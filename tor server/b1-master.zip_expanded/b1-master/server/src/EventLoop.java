@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread that waits on a selector for commands on many idle connections
+ * and hands the connections that have a whole command to the worker pool
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final WorkerPool workers;
+    private final ConnectionLimiter limiter;
+    private final CommandHandlers handlers;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    EventLoop(WorkerPool workers, ConnectionLimiter limiter, CommandHandlers handlers) throws IOException {
+        this.selector = Selector.open();
+        this.workers = workers;
+        this.limiter = limiter;
+        this.handlers = handlers;
+    }
+
+    /**
+     * Adds a newly accepted connection to this loop
+     *
+     * @param channel the channel of the connection
+     */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                ChannelConnection connection = new ChannelConnection(channel, this, limiter, handlers);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                System.err.println("Error in connection attempt.");
+                limiter.release();
+                close(channel);
+            }
+        });
+    }
+
+    /**
+     * Parks a connection that has been served back on the selector until its next command arrives
+     *
+     * @param connection the connection to park
+     */
+    void resume(ChannelConnection connection) {
+        execute(() -> {
+            SelectionKey key = connection.getKey();
+            if (key.isValid())
+                key.interestOps(SelectionKey.OP_READ);
+        });
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable())
+                        read(key);
+                }
+            } catch (IOException e) {
+                System.err.println("Error in event loop: " + e.getMessage());
+            }
+        }
+    }
+
+    private void read(SelectionKey key) {
+        ChannelConnection connection = (ChannelConnection) key.attachment();
+        try {
+            if (!connection.fill()) {
+                connection.close();
+                return;
+            }
+            if (connection.hasCommand()) {
+                key.interestOps(0); //the worker owns the connection until it is resumed
+                if (!workers.trySubmit(connection::serve))
+                    connection.refuse();
+            }
+        } catch (IOException e) {
+            System.out.println("Error:" + e.getMessage());
+            connection.close();
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The versions of the saved files. A save writes a new version next to the one that is being read and publishes it
+ * by replacing the manifest of the file (its name with .ver, which holds the number of the version) in one atomic rename,
+ * so a reader finds the old version or the new one whole and never waits for a save.
+ * The version that has been replaced is deleted once the last reader that holds it lets go of it.
+ * Files saved before there were versions have no manifest, they are read under their own name until they are saved again.
+ * A version that cannot be deleted yet (on Windows a file cannot be deleted while it is mapped into memory) is tried again
+ * whenever a version is published, and {@link #sweep} deletes whatever an earlier run left behind when the server starts
+ */
+class FileVersions {
+    private static final String MANIFEST_SUFFIX = ".ver";
+    //the file or the hash of a version, or a manifest that has not been published, after the path of the saved file
+    private static final Pattern VERSIONED = Pattern.compile("(.*)\\.(enc|sha|ver)\\.(\\d+)");
+    //only a hint, a number is taken once the encrypted file of the version has been created
+    private static final AtomicLong nextNumber = new AtomicLong(System.currentTimeMillis());
+    //the versions that are being read or that wait for their readers to be deleted, by their encrypted file
+    private static final ConcurrentHashMap<File, Readers> readers = new ConcurrentHashMap<>();
+    //saves of the same file must not publish at the same time, or the version one of them replaced would never be deleted.
+    //publishing only renames a small file, the saves themselves go on at the same time
+    private static final ConcurrentHashMap<File, Publishers> publishers = new ConcurrentHashMap<>();
+    private static final Set<File> undeleted = ConcurrentHashMap.newKeySet(); //files of versions that are deleted again later
+
+    /**
+     * @param base the path of the file without a suffix
+     * @return the files of a new version, they are seen by no one until the version is published.
+     * Its encrypted file has been created empty, so no other version gets its number, not even one left behind by an earlier run
+     */
+    static Version create(String base) throws IOException {
+        while (true) {
+            Version version = new Version(base, Long.toString(nextNumber.incrementAndGet()));
+            if (version.hash.exists())
+                continue; //the hash of a version that could not be deleted
+            try {
+                Files.createFile(version.file.toPath());
+                return version;
+            } catch (FileAlreadyExistsException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Finds the version of a file that is current and holds it, it is not deleted until the version is closed
+     *
+     * @param base the path of the file without a suffix
+     * @return the version, its files do not exist if the file has never been saved
+     */
+    static Version open(String base) throws IOException {
+        while (true) {
+            String number = current(base);
+            Version version = new Version(base, number);
+            readers.compute(version.file, (file, r) -> {
+                r = r != null ? r : new Readers();
+                r.count++;
+                return r;
+            });
+            if (number.equals(current(base)))
+                return version; //it was current once it was held, so it cannot have been deleted
+            version.close(); //it has been replaced in the meantime and may be gone, the new one is read instead
+        }
+    }
+
+    /**
+     * Makes a version the current one of its file, the version it replaces is deleted once no one reads it any more
+     */
+    static void publish(Version version) throws IOException {
+        Path manifest = Paths.get(version.base + MANIFEST_SUFFIX);
+        Path temp = Paths.get(version.base + MANIFEST_SUFFIX + "." + version.number);
+        //the version has to be on the disk before the manifest points to it, or a crash could leave a manifest of a file that is not whole
+        force(version.file.toPath(), null);
+        force(version.hash.toPath(), null);
+        File key = new File(version.base);
+        Publishers publishing = publishers.compute(key, (file, p) -> {
+            p = p != null ? p : new Publishers();
+            p.count++;
+            return p;
+        });
+        publishing.lock.lock();
+        try {
+            String replaced = current(version.base);
+            try {
+                force(temp, version.number.getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, manifest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            retire(new Version(version.base, replaced));
+        } finally {
+            publishing.lock.unlock();
+            publishers.computeIfPresent(key, (file, p) -> --p.count > 0 ? p : null);
+        }
+        undeleted.removeIf(FileVersions::deleted);
+    }
+
+    /**
+     * Writes a file to the disk
+     *
+     * @param data the data the file is written with, null to write the file as it is
+     */
+    private static void force(Path path, byte[] data) throws IOException {
+        try (FileChannel channel = data == null ? FileChannel.open(path, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (data != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Deletes the versions that are not current and the manifests that were never published, left behind by an earlier run.
+     * It must run before the files are used
+     *
+     * @param prefix the path the files start with, like the folder of a user
+     */
+    static void sweep(String prefix) {
+        File probe = new File(prefix + "x").getAbsoluteFile(); //a file under the prefix, to find the folder the prefix is in
+        String start = probe.getPath().substring(0, probe.getPath().length() - 1);
+        File[] files = probe.getParentFile() != null ? probe.getParentFile().listFiles() : null;
+        if (files == null)
+            return;
+        for (File file : files) {
+            Matcher matcher = VERSIONED.matcher(file.getPath());
+            if (!file.getPath().startsWith(start) || !matcher.matches())
+                continue;
+            try {
+                if (matcher.group(2).equals("ver") || !matcher.group(3).equals(current(matcher.group(1))))
+                    delete(file);
+            } catch (IOException e) {
+                System.out.println("Could not check " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes a file of a version, a file that cannot be deleted is remembered and deleted again later
+     */
+    private static void delete(File file) {
+        if (deleted(file)) {
+            undeleted.remove(file);
+        } else if (undeleted.add(file)) {
+            System.out.println("Could not delete " + file + ", it is tried again later");
+        }
+    }
+
+    private static boolean deleted(File file) {
+        return file.delete() || !file.exists();
+    }
+
+    /**
+     * @return the number of the current version, empty for a file saved before there were versions
+     */
+    private static String current(String base) throws IOException {
+        try {
+            return new String(Files.readAllBytes(Paths.get(base + MANIFEST_SUFFIX)), StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return "";
+        }
+    }
+
+    private static void retire(Version version) {
+        readers.compute(version.file, (file, r) -> {
+            if (r == null) {
+                version.delete(); //while it is in the map no one can start holding it
+                return null;
+            }
+            r.retired = true;
+            return r;
+        });
+    }
+
+    /**
+     * The saves that publish a version of the same file, guarded by the map
+     */
+    private static class Publishers {
+        final Lock lock = new ReentrantLock();
+        int count;
+    }
+
+    /**
+     * Who reads a version, guarded by the map
+     */
+    private static class Readers {
+        int count;
+        boolean retired; //it has been replaced, the last reader deletes it
+    }
+
+    /**
+     * The files of one version of a saved file, the encrypted data and its hash.
+     * Closing a version that was opened lets go of it, closing it more than once does no harm
+     */
+    static class Version implements AutoCloseable {
+        final File file;
+        final File hash;
+        private final String base;
+        private final String number;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Version(String base, String number) {
+            this.base = base;
+            this.number = number;
+            //the number comes after the suffix, so a version never has the name of a file saved before there were versions
+            String suffix = number.isEmpty() ? "" : "." + number;
+            this.file = new File(base + ".enc" + suffix);
+            this.hash = new File(base + ".sha" + suffix);
+        }
+
+        /**
+         * @return true if the version has both of its files
+         */
+        boolean exists() {
+            return file.exists() && hash.exists();
+        }
+
+        /**
+         * Deletes the files of a version that could not be saved whole, it must not have been published
+         */
+        void delete() {
+            FileVersions.delete(file);
+            FileVersions.delete(hash);
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            readers.computeIfPresent(file, (f, r) -> {
+                if (--r.count > 0)
+                    return r;
+                if (r.retired)
+                    delete();
+                return null;
+            });
+        }
+    }
+}
@@ -0,0 +1,7 @@
+import java.io.Closeable;
+
+/**
+ * Accepts the connections of the clients, running it accepts them until it is closed
+ */
+interface Listener extends Runnable, Closeable {
+}
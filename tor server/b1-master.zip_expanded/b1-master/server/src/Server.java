@@ -1,30 +1,61 @@
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class Server {
-    private static ServerSocket serverSocket;
 
     public static void main(String[] args) {
         DataManager db = new DataManager();
+        Listener server = null;
         try {
             db.loadData();
-            serverSocket = new ServerSocket(1313);
+            server = listen(Endpoints.parse(ServerConfig.ENDPOINTS), db);
+            Shutdown.install(server, db);
             System.out.println("Server started.");
         } catch (Exception e) {
             System.err.println(e.getMessage());
             System.exit(1);
         }
 
-        while (true) {
-            try {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Accepted connection : " + clientSocket);
-                Thread t = new Thread(new ClientConnection(clientSocket, db));
-                t.start();
-            } catch (Exception e) {
-                System.err.println("Error in connection attempt.");
+        server.run();
+    }
+
+    /**
+     * Creates the server that serves the clients in the configured mode.
+     * All the endpoints share the data manager, the pools and the limits of the server
+     *
+     * @param addresses   the addresses to listen to
+     * @param dataManager the data manager that serves the commands
+     * @return the server, running it accepts connections until it is closed
+     */
+    static Listener listen(List<SocketAddress> addresses, DataManager dataManager) throws Exception {
+        if (addresses.isEmpty())
+            throw new IllegalArgumentException("No endpoint to listen to");
+        List<ServerSocketChannel> channels = new ArrayList<>();
+        try {
+            for (SocketAddress address : addresses) {
+                channels.add(Endpoints.open(address));
+                System.out.println("Listening to " + address);
             }
+            AdminConsole.start(Endpoints.parse(ServerConfig.ADMIN_ENDPOINTS));
+        } catch (Exception e) {
+            for (ServerSocketChannel channel : channels)
+                Endpoints.close(channel);
+            AdminConsole.close();
+            throw e;
         }
+        Metrics.register("buffers.hits", BufferPool::getHits);
+        Metrics.register("buffers.misses", BufferPool::getMisses);
+        Metrics.register("buffers.outstanding", BufferPool::getOutstanding);
+        Metrics.register("buffers.leaked", BufferPool::getLeaked);
+        Metrics.startReporting(ServerConfig.METRICS_INTERVAL);
+        ConnectionReaper.start();
+        Shaping.register();
+        CommandHandlers handlers = new CommandHandlers(dataManager);
+        if (ServerConfig.MODE == ServerConfig.Mode.SELECTOR)
+            return new SelectorServer(channels, handlers);
+        return new BlockingServer(channels, handlers, ServerConfig.MODE);
     }
 }
\ No newline at end of file
@@ -1,18 +1,20 @@
 import java.io.File;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
 
 import net.sf.T0rlib4j.controller.network.JavaTorRelay;
 import net.sf.T0rlib4j.controller.network.TorServerSocket;
 
 
 public class ServerTor {
-    private static ServerSocket serverSocket;
     private static final int hiddenservicedirport = 80;
     private static final int localport = 1313;
 
     public static void main(String[] args) {
         DataManager db = new DataManager();
+        Listener server = null;
         try {
             db.loadData();
             File dir = new File("torfiles");
@@ -24,22 +26,20 @@ public class ServerTor {
            // System.out.println("Tor Service Listen to RemotePort  " + torServerSocket.getServicePort());
            // System.out.println("Tor Service Listen to LocalPort  " + node.getLocalPort());
             
-            serverSocket = torServerSocket.getServerSocket();
+            //the hidden service forwards to the local port, so listen on it in the configured mode instead,
+            //along with the other endpoints so the clients on the local network do not have to go through Tor
+            torServerSocket.getServerSocket().close();
+            List<SocketAddress> endpoints = Endpoints.parse(System.getProperty("server.endpoints", ""));
+            if (!Endpoints.hasPort(endpoints, localport))
+                endpoints.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), localport));
+            server = Server.listen(endpoints, db);
+            Shutdown.install(server, db);
             System.out.println("Server started.");
         } catch (Exception e) {
             System.err.println(e.getMessage());
             System.exit(1);
         }
 
-        while (true) {
-            try {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Accepted connection : " + clientSocket);
-                Thread t = new Thread(new ClientConnection(clientSocket, db));
-                t.start();
-            } catch (Exception e) {
-                System.err.println("Error in connection attempt.");
-            }
-        }
+        server.run();
     }
 }
\ No newline at end of file
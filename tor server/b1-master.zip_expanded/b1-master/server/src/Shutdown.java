@@ -0,0 +1,52 @@
+import java.io.IOException;
+
+/**
+ * Stops the server without cutting off the commands under way, when the process is asked to stop
+ * (for example by Ctrl+C or a kill of a rolling restart). The server stops accepting connections and refuses new commands,
+ * waits for the commands under way to be answered and only then closes the connections
+ */
+class Shutdown {
+    private static final long CHECK_MILLIS = 100L;
+
+    private static volatile boolean draining;
+
+    /**
+     * @return true once the server is stopping, new commands are refused then
+     */
+    static boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Stops the server gracefully when the process is asked to stop
+     *
+     * @param listener    accepts the connections
+     * @param dataManager saves the data of the users
+     */
+    static void install(Listener listener, DataManager dataManager) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(listener, dataManager), "shutdown"));
+    }
+
+    private static void drain(Listener listener, DataManager dataManager) {
+        System.out.println("Shutting down...");
+        draining = true;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            System.err.println("Error while closing the server socket: " + e.getMessage());
+        }
+        long deadline = System.nanoTime() + ServerConfig.SHUTDOWN_TIMEOUT * 1_000_000_000L;
+        boolean quiet;
+        while (!(quiet = ConnectionReaper.isQuiet()) && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(CHECK_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        ConnectionReaper.closeAll();
+        dataManager.close();
+        AdminConsole.close(); //left open until now, so the connections can be watched while they finish
+        System.out.println(quiet ? "Server stopped." : "Server stopped, some commands did not finish in time.");
+    }
+}
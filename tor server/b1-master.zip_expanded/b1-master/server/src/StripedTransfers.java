@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Puts together the stripes of files that clients carry over several connections at once.
+ * The stripes of an upload are collected until all of them have arrived and the file is saved like any other,
+ * a download is loaded once and every stripe is cut out of it. The memory of the whole file is reserved
+ * until the transfer is done
+ */
+class StripedTransfers {
+    private static final int MAX_STRIPES = 64;
+    private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+    //a transfer whose stripes stop arriving is dropped, by then the connections that carry them have been reaped
+    private static final long EXPIRE_NANOS = Math.max(1, ServerConfig.PAYLOAD_TIMEOUT) * 2 * 1_000_000_000L;
+
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+
+    /**
+     * Stores a stripe of an upload
+     *
+     * @param user       the user that uploads the file
+     * @param transferId the id the client gave to the transfer
+     * @param stripe     the index of the stripe
+     * @param stripes    the number of stripes of the transfer
+     * @param offset     where the data of the stripe goes in the file
+     * @param total      the length of the whole file
+     * @param data       the data of the stripe, stripe i of n is the part of the file from total*i/n up to total*(i+1)/n
+     * @return the whole upload once all its stripes have arrived, null while stripes are missing.
+     * It must be closed once the file has been saved
+     * @throws IOException if the stripe is not the part of the file it should be, or does not fit the transfer
+     */
+    Upload upload(String user, long transferId, int stripe, int stripes, long offset, long total, byte[] data) throws IOException {
+        expire();
+        checkStripe(stripe, stripes);
+        //the stripes must cover the file exactly once, or a stripe could overwrite another and leave a hole that is saved as data
+        if (total < 0 || total > MAX_LENGTH || offset != total * stripe / stripes || offset + data.length != total * (stripe + 1) / stripes)
+            throw new IOException("Invalid stripe " + offset + "+" + data.length + " of " + total + " bytes");
+        String key = key(user, transferId);
+        Upload upload = uploads.get(key);
+        if (upload == null) { //the memory is reserved outside the map, waiting for it must not block other transfers
+            Upload created = new Upload(stripes, (int) total, MemoryBudget.reserve(total));
+            upload = uploads.putIfAbsent(key, created);
+            if (upload == null)
+                upload = created;
+            else
+                created.close();
+        }
+        if (!upload.add(stripe, stripes, (int) offset, (int) total, data))
+            return null;
+        uploads.remove(key, upload);
+        return upload;
+    }
+
+    /**
+     * Finds the data of a download, the first stripe that asks for it loads it
+     *
+     * @param user       the user that downloads the file
+     * @param transferId the id the client gave to the transfer
+     * @param stripe     the index of the stripe
+     * @param stripes    the number of stripes of the transfer
+     * @param length     about how long the file is, that much memory is reserved before it is loaded
+     * @param loader     loads the file
+     * @return the whole file
+     * @throws Exception why the file could not be loaded, every stripe gets the same error
+     */
+    byte[] download(String user, long transferId, int stripe, int stripes, long length, Callable<byte[]> loader) throws Exception {
+        expire();
+        checkStripe(stripe, stripes);
+        String key = key(user, transferId);
+        Download download = downloads.computeIfAbsent(key, k -> new Download(stripes));
+        try {
+            return download.load(length, loader);
+        } finally {
+            if (download.served() && downloads.remove(key, download))
+                download.release();
+        }
+    }
+
+    private static void checkStripe(int stripe, int stripes) throws IOException {
+        if (stripes < 1 || stripes > MAX_STRIPES || stripe < 0 || stripe >= stripes)
+            throw new IOException("Invalid stripe " + stripe + " of " + stripes);
+    }
+
+    private static String key(String user, long transferId) {
+        return user.toLowerCase() + "/" + transferId;
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        uploads.forEach((key, upload) -> {
+            if (now - upload.lastProgress > EXPIRE_NANOS && uploads.remove(key, upload))
+                upload.close();
+        });
+        downloads.forEach((key, download) -> {
+            if (now - download.created > EXPIRE_NANOS && downloads.remove(key, download))
+                download.release();
+        });
+    }
+
+    /**
+     * The stripes of a file that is uploaded, closing it gives back the memory of the file
+     */
+    static class Upload implements AutoCloseable {
+        final byte[] data;
+        private final int stripes;
+        private final MemoryBudget.Reservation reservation;
+        private final BitSet received = new BitSet();
+        private volatile long lastProgress = System.nanoTime();
+
+        private Upload(int stripes, int total, MemoryBudget.Reservation reservation) {
+            this.stripes = stripes;
+            this.reservation = reservation;
+            this.data = new byte[total];
+        }
+
+        @Override
+        public void close() {
+            reservation.close();
+        }
+
+        /**
+         * @return true if this was the last stripe that was missing
+         */
+        synchronized boolean add(int stripe, int stripes, int offset, int total, byte[] bytes) throws IOException {
+            if (stripes != this.stripes || total != data.length || received.get(stripe))
+                throw new IOException("Stripe " + stripe + " does not belong to the transfer");
+            System.arraycopy(bytes, 0, data, offset, bytes.length);
+            received.set(stripe);
+            lastProgress = System.nanoTime();
+            return received.cardinality() == stripes;
+        }
+    }
+
+    private static class Download {
+        private final long created = System.nanoTime();
+        private int remaining;
+        private byte[] data;
+        private Exception error;
+        private MemoryBudget.Reservation reservation;
+
+        Download(int stripes) {
+            this.remaining = stripes;
+        }
+
+        synchronized byte[] load(long length, Callable<byte[]> loader) throws Exception {
+            if (data == null && error == null) {
+                try {
+                    reservation = MemoryBudget.reserve(length);
+                    data = loader.call();
+                } catch (Exception e) {
+                    error = e;
+                }
+            }
+            if (error != null)
+                throw error;
+            return data;
+        }
+
+        synchronized void release() {
+            if (reservation != null)
+                reservation.close();
+            data = null;
+        }
+
+        /**
+         * @return true once every stripe has been served
+         */
+        synchronized boolean served() {
+            return --remaining <= 0;
+        }
+    }
+}
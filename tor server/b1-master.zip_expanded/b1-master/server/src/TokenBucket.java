@@ -0,0 +1,48 @@
+import java.io.InterruptedIOException;
+import java.util.function.LongSupplier;
+
+/**
+ * Lets bytes through at a rate, bursts of up to a second of the rate go through right away.
+ * Bytes may be taken before they are there, the bucket goes into debt and whoever takes next waits until it is paid off,
+ * so the waiting threads are served about in the order they came
+ */
+class TokenBucket {
+    private final LongSupplier rate;
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    /**
+     * @param rate supplies the bytes per second, it is asked every time so it can change at any time, 0 or less for no limit
+     */
+    TokenBucket(LongSupplier rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Takes bytes from the bucket, waits if the bucket is in debt afterwards
+     *
+     * @param bytes the number of bytes
+     * @throws InterruptedIOException if the thread is interrupted while it waits
+     */
+    void acquire(long bytes) throws InterruptedIOException {
+        long bytesPerSecond = rate.getAsLong();
+        if (bytesPerSecond <= 0)
+            return;
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - refilled) * bytesPerSecond / 1_000_000_000.0);
+            refilled = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1_000_000_000.0 / bytesPerSecond) : 0;
+        }
+        if (waitNanos == 0)
+            return;
+        try {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+}
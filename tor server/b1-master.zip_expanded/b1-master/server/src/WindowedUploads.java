@@ -0,0 +1,220 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Uploads whose data the client may only send within the window the server has granted.
+ * The chunks are copied from the connection to a spool file as they arrive and acknowledged once they are on disk,
+ * so the server holds none of an upload in memory while it is received
+ * and an upload that breaks can be resumed from the last acknowledged offset.
+ * Every upload holds a spool file until it is saved or expires, so only so many may be open for a user and for the server,
+ * and the spool files of the open uploads may only grow to so many bytes together
+ */
+class WindowedUploads {
+    private static final long EXPIRE_NANOS = ServerConfig.UPLOAD_EXPIRE * 1_000_000_000L;
+
+    private static final long MAX_SPOOL_BYTES = ServerConfig.MAX_SPOOL * 1024L * 1024L;
+
+    private final Map<Long, Upload> uploads = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLong spooled = new AtomicLong(); //the lengths of the open uploads, what their spool files grow to
+    private final LongAdder rejected = new LongAdder();
+
+    WindowedUploads() {
+        Metrics.register("uploads.open", uploads::size);
+        Metrics.register("uploads.spooled", spooled::get);
+        Metrics.register("uploads.rejected", rejected::sum);
+    }
+
+    /**
+     * Starts an upload or resumes one that was broken off
+     *
+     * @param user     the user that uploads the file
+     * @param fileName the name the file will be saved with
+     * @param total    the length of the file
+     * @param token    the token of the upload to resume, or a negative number to start a new one
+     * @param stats    the stats of the connection that carries the upload, they size the first window
+     * @return the upload
+     * @throws IOException                if the spool file cannot be created
+     * @throws RejectedExecutionException if too many uploads are open, or their spool files would grow too large
+     */
+    Upload start(String user, String fileName, long total, long token, TransferStats stats) throws IOException {
+        expire();
+        if (total < 0 || total > Integer.MAX_VALUE - 8)
+            throw new IOException("Invalid file length " + total);
+        Upload upload = token < 0 ? null : uploads.get(token);
+        if (upload != null && upload.user.equalsIgnoreCase(user) && upload.fileName.equals(fileName) && upload.total == total) {
+            upload.resume(stats);
+            return upload;
+        }
+        synchronized (this) { //the uploads are counted and added together, so the limits hold
+            if (uploads.size() >= ServerConfig.MAX_UPLOADS || countOf(user) >= ServerConfig.MAX_USER_UPLOADS
+                    || spooled.get() + total > MAX_SPOOL_BYTES) {
+                rejected.increment();
+                throw new RejectedExecutionException("Too many uploads");
+            }
+            long newToken;
+            do {
+                newToken = random.nextLong() & Long.MAX_VALUE; //the token is all it takes to add data, so it must not be guessable
+            } while (uploads.containsKey(newToken));
+            upload = new Upload(newToken, user, fileName, total, stats);
+            uploads.put(newToken, upload);
+            spooled.addAndGet(total);
+            return upload;
+        }
+    }
+
+    private int countOf(String user) {
+        int count = 0;
+        for (Upload upload : uploads.values()) {
+            if (upload.user.equalsIgnoreCase(user))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the upload with the given token or null if there is none
+     */
+    Upload get(long token) {
+        return uploads.get(token);
+    }
+
+    /**
+     * Forgets an upload that has been saved and deletes its spool file
+     */
+    void finish(Upload upload) {
+        if (uploads.remove(upload.token, upload))
+            spooled.addAndGet(-upload.total);
+        upload.delete();
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        for (Upload upload : uploads.values()) {
+            if (now - upload.lastProgress > EXPIRE_NANOS)
+                finish(upload);
+        }
+    }
+
+    static class Upload {
+        final long token;
+        final String user;
+        final String fileName;
+        final long total;
+        private final Path path;
+        private final RandomAccessFile spool;
+        private long stored;
+        private long acknowledged;
+        private long granted;
+        private long grantedBefore; //where the last grant started, the first chunk beyond it shows how long the grant took to arrive
+        private long grantedAt;
+        private long lastAck = System.nanoTime();
+        private volatile long lastProgress = System.nanoTime();
+
+        private Upload(long token, String user, String fileName, long total, TransferStats stats) throws IOException {
+            this.token = token;
+            this.user = user;
+            this.fileName = fileName;
+            this.total = total;
+            this.path = Files.createTempFile("upload-", ".part");
+            this.spool = new RandomAccessFile(path.toFile(), "rw");
+            grant(stats);
+        }
+
+        /**
+         * Drops whatever arrived after the last acknowledgement, the client will send it again
+         */
+        synchronized void resume(TransferStats stats) throws IOException {
+            stored = acknowledged;
+            spool.setLength(stored);
+            granted = 0;
+            grant(stats);
+            lastAck = lastProgress = System.nanoTime();
+        }
+
+        /**
+         * Grants the client a window from what has been stored, as large as the connection can fill in a round trip
+         */
+        private void grant(TransferStats stats) {
+            grantedBefore = granted;
+            grantedAt = System.nanoTime();
+            granted = Math.min(total, stored + stats.window());
+        }
+
+        /**
+         * Checks that a chunk is the next one and fits in the window before its data is read
+         */
+        synchronized boolean accepts(long offset, long length) {
+            return offset == stored && length >= 0 && offset + length <= granted;
+        }
+
+        /**
+         * Copies a chunk to the spool file, once enough has been written it is flushed to disk and a new window is granted
+         *
+         * @param data the data of the chunk, read straight from the connection
+         * @return true if the client should be told about the new window
+         */
+        synchronized boolean write(long offset, long length, InputStream data, TransferStats stats) throws IOException {
+            if (!accepts(offset, length))
+                throw new IOException("Chunk out of window");
+            long now = System.nanoTime();
+            //the client could not have sent this before the grant reached it, so this took a round trip at least
+            if (grantedAt != 0 && offset + length > grantedBefore) {
+                stats.rttSample(now - grantedAt);
+                grantedAt = 0;
+            }
+            FileChannel channel = spool.getChannel().position(offset);
+            StreamUtils.transfer(Channels.newChannel(data), channel, length);
+            stored += length;
+            lastProgress = now;
+            if (stored - acknowledged < stats.window() / 4 && stored < total)
+                return false;
+            spool.getFD().sync(); //only acknowledge what is really on disk
+            now = System.nanoTime();
+            stats.throughputSample(stored - acknowledged, now - lastAck);
+            lastAck = now;
+            acknowledged = stored;
+            grant(stats);
+            return true;
+        }
+
+        synchronized boolean isComplete() {
+            return stored == total;
+        }
+
+        synchronized long getAcknowledged() {
+            return acknowledged;
+        }
+
+        synchronized long getGranted() {
+            return granted;
+        }
+
+        /**
+         * @return a stream of everything that has been uploaded, read from the spool file
+         */
+        synchronized InputStream open() throws IOException {
+            return new BufferedInputStream(Files.newInputStream(path));
+        }
+
+        private synchronized void delete() {
+            try {
+                spool.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}